@@ -0,0 +1,42 @@
+package tips;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+
+
+/**
+ * Samples the root of a cherry (two end points x and y joined at a root,
+ * at distances t1 and t2), as used by TipsTreeLikelihood.
+ *
+ * TimeIntegratedPathSampler provides a Monte Carlo implementation valid
+ * for any StationaryProcess; exact implementations can be substituted
+ * when the transition probabilities are known.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S> The type of the states
+ */
+public interface CherrySampler<S>
+{
+  /**
+   *
+   * @param rand
+   * @param x
+   * @param y
+   * @param t1
+   * @param t2
+   * @return A pair where the first item is the sampled root, and the second, the log
+   *   of its weight, an unbiased estimate of sum_r pi(r) P(r -> x, t1) P(r -> y, t2)
+   *   (in log scale).
+   */
+  public Pair<S,Double> sampleTreeCherryLog(Random rand, S x, S y, double t1, double t2);
+
+  /**
+   *
+   * @param s
+   * @return The stationary probability of s.
+   */
+  public double getStationaryPr(S s);
+}
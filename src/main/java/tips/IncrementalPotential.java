@@ -0,0 +1,27 @@
+package tips;
+
+
+
+/**
+ * A Potential which can compute the potential of a neighbor from the potential 
+ * of the current state, typically in constant time, instead of from scratch. 
+ * 
+ * PotProposal uses it automatically when available.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S>
+ */
+public interface IncrementalPotential<S> extends Potential<S>
+{
+  /**
+   * Should return the same value as get(neighbor, target).
+   * 
+   * @param neighbor a state returned by Process.rates(current)
+   * @param current
+   * @param currentPotential get(current, target)
+   * @param target
+   * @return potential value for neighbor (relative to target)
+   */
+  public double get(S neighbor, S current, double currentPotential, S target);
+}
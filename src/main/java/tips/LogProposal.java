@@ -0,0 +1,30 @@
+package tips;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+
+
+/**
+ * A Proposal which can return the log of its proposal probability, 
+ * to avoid underflow for long paths.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S>
+ */
+public interface LogProposal<S> extends Proposal<S>
+{
+  /**
+   * 
+   * @param rand
+   * @param x
+   * @param y
+   * @param t
+   * @return A pair where the first item is the proposed path, 
+   *   and the second, the log of its proposal probability
+   */
+  public Pair<List<S>, Double> proposeLog(Random rand, S x, S y, double t);
+}
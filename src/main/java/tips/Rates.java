@@ -0,0 +1,139 @@
+package tips;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import bayonet.distributions.Multinomial;
+import briefj.collections.Counter;
+
+
+
+/**
+ * An immutable view of the rates of departure from a state, together 
+ * with the precomputed hold rate and jump chain transition probabilities.
+ * 
+ * Instances can be shared across calls and threads (see ReadOnlyRatesProcess).
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S> The type of the states
+ */
+public final class Rates<S>
+{
+  private final List<S> states;
+  private final double [] rates;
+  private final double [] transitionPrs;
+  private final Map<S,Integer> indices;
+  private final double holdRate;
+  
+  /**
+   * 
+   * @param rates The rates, as returned by Process.rates() (not modified, and 
+   *   not referenced after this call).
+   */
+  public Rates(Counter<S> rates)
+  {
+    final int size = rates.size();
+    final List<S> states = new ArrayList<S>(size);
+    this.rates = new double[size];
+    this.indices = new HashMap<S,Integer>(2 * size);
+    double holdRate = 0.0;
+    for (S state : rates.keySet())
+    {
+      final double rate = rates.getCount(state);
+      this.indices.put(state, states.size());
+      this.rates[states.size()] = rate;
+      states.add(state);
+      holdRate += rate;
+    }
+    this.states = Collections.unmodifiableList(states);
+    this.holdRate = holdRate;
+    this.transitionPrs = new double[size];
+    for (int i = 0; i < size; i++)
+      transitionPrs[i] = this.rates[i] / holdRate;
+  }
+  
+  /**
+   * 
+   * @return The states reachable in one jump, in the order of the Counter 
+   *   this object was built from.
+   */
+  public List<S> states()
+  {
+    return states;
+  }
+  
+  public int size()
+  {
+    return states.size();
+  }
+  
+  public S state(int index)
+  {
+    return states.get(index);
+  }
+  
+  public double rate(int index)
+  {
+    return rates[index];
+  }
+  
+  /**
+   * 
+   * @param state
+   * @return The rate of jumping to the given state, or zero if it is not a neighbor.
+   */
+  public double getRate(S state)
+  {
+    final Integer index = indices.get(state);
+    return index == null ? 0.0 : rates[index];
+  }
+  
+  /**
+   * 
+   * @return The sum of the rates.
+   */
+  public double holdRate()
+  {
+    return holdRate;
+  }
+  
+  /**
+   * 
+   * @param state
+   * @return The probability that the jump chain moves to the given state.
+   */
+  public double transitionProbability(S state)
+  {
+    final Integer index = indices.get(state);
+    return index == null ? 0.0 : transitionPrs[index];
+  }
+  
+  /**
+   * Sample the next state of the jump chain (using the same random draws as 
+   * ProposalRandom.sampleCounter() on the normalized rates).
+   * 
+   * @param rand
+   * @return
+   */
+  public S sample(Random rand)
+  {
+    return states.get(Multinomial.sampleMultinomial(rand, transitionPrs));
+  }
+  
+  /**
+   * 
+   * @return A new, mutable copy of the rates.
+   */
+  public Counter<S> toCounter()
+  {
+    final Counter<S> result = new Counter<S>();
+    for (int i = 0; i < rates.length; i++)
+      result.setCount(states.get(i), rates[i]);
+    return result;
+  }
+}
@@ -0,0 +1,24 @@
+package tips;
+
+
+
+/**
+ * A Process which can also return its rates in an immutable form, 
+ * which can therefore be cached and shared.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S> The type of the states
+ */
+public interface ReadOnlyRatesProcess<S> extends Process<S>
+{
+  /**
+   * The rates of departure from the given point, as in rates(), but 
+   * in a form which is never modified, so that the same 
+   * object can be returned across calls and threads.
+   * 
+   * @param point
+   * @return
+   */
+  public Rates<S> readOnlyRates(S point);
+}
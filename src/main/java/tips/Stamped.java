@@ -0,0 +1,19 @@
+package tips;
+
+
+
+/**
+ * An object whose state (e.g. the values of its parameters) is summarized 
+ * by a stamp, so that changes can be detected in constant time, e.g. by 
+ * the caches of TipsTreeLikelihood.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public interface Stamped
+{
+  /**
+   * @return A value which changes whenever the state changes (up to 
+   *   collisions of a 64-bit hash).
+   */
+  public long stamp();
+}
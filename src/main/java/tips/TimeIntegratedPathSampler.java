@@ -3,21 +3,27 @@ package tips;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
-import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
 
 import com.google.common.collect.Lists;
 
+import tips.utils.AdaptiveEstimate;
+import tips.utils.AdaptiveOptions;
+import tips.utils.LogSum;
+import tips.utils.ParallelUtils;
+import tips.utils.PathScore;
 import tips.utils.PotPropOptions;
 import tips.utils.PotProposal;
 import tips.utils.ProcessUtils;
+import tips.utils.SojournTimeIntegrals;
 import tutorialj.Tutorial;
 
 
+import bayonet.distributions.Multinomial;
 import briefj.collections.Counter;
  
 
@@ -30,7 +36,7 @@ import briefj.collections.Counter;
  *
  * @param <S>
  */
-public class TimeIntegratedPathSampler<S>
+public class TimeIntegratedPathSampler<S> implements CherrySampler<S>
 {
   /**
    * 
@@ -56,6 +62,32 @@ public class TimeIntegratedPathSampler<S>
    */
   public SummaryStatistics unnormalizedWeightsStatistics = null;
   
+  /**
+   * Pool used to process the particles in parallel.
+   * 
+   * Leave null to process the particles sequentially, using rand directly.
+   * 
+   * When non-null, the particles are split into chunks of particlesPerChunk 
+   * particles, each chunk using its own stream of randomness seeded from a 
+   * single draw of rand, and the chunks are combined in order. The output 
+   * is therefore the same for any parallelism of the pool.
+   */
+  public ForkJoinPool pool = null;
+  
+  /**
+   * Number of particles sharing a stream of randomness when pool is non-null.
+   */
+  public int particlesPerChunk = 1000;
+  
+  /**
+   * If true, sampleTreeCherry() and sampleTreeCherryLog() use all the rootings 
+   * of the proposed path (see treeCherryRootingsLog()) instead of a single 
+   * uniformly sampled one: the root is sampled proportionally to the weights of 
+   * the rootings, and the weight returned is their sum. This lowers the variance 
+   * of the weights, at the cost of one pass over the path in each direction. 
+   */
+  public boolean raoBlackwellizeRooting = false;
+  
   /**
    * Create a TIPS algorithm with a generic proposal mechanism.
    * 
@@ -91,25 +123,54 @@ public class TimeIntegratedPathSampler<S>
    * @param t2
    * @return
    */
-  public Counter<S> sampleTreeCherries(S x, S y, double t1, double t2)
+  public Counter<S> sampleTreeCherries(final S x, final S y, final double t1, final double t2)
   {
-    Counter<S> result = new Counter<S>();
-    
-    for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
-    {
-      Pair<S, Double> sampleTreeCherry = sampleTreeCherry(x, y, t1, t2);
-      result.incrementCount(sampleTreeCherry.getLeft(), sampleTreeCherry.getRight());
-    }
+    List<ParticleChunk<S>> chunks = runParticles(nParticles, new ParticleLoop<S>() {
+      @Override
+      public void run(Random rand, int nParticles, ParticleChunk<S> output)
+      {
+        for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
+        {
+          Pair<S, Double> sampleTreeCherry = sampleTreeCherry(rand, x, y, t1, t2);
+          output.add(sampleTreeCherry.getLeft(), sampleTreeCherry.getRight());
+        }
+      }
+    }, true);
     
-    return result;
+    return mergeItems(chunks);
   }
   
   public Pair<S,Double> sampleTreeCherry(S x, S y, double t1, double t2)
+  {
+    return sampleTreeCherry(rand, x, y, t1, t2);
+  }
+  
+  public Pair<S,Double> sampleTreeCherry(Random rand, S x, S y, double t1, double t2)
+  {
+    Pair<S,Double> result = sampleTreeCherryLog(rand, x, y, t1, t2);
+    return Pair.of(result.getLeft(), Math.exp(result.getRight()));
+  }
+  
+  /**
+   * Same as sampleTreeCherry(), but returns the log of the weight, computed 
+   * without underflow.
+   * 
+   * @param rand
+   * @param x
+   * @param y
+   * @param t1
+   * @param t2
+   * @return A pair where the first item is the sampled root, and the second, the log of its weight.
+   */
+  public Pair<S,Double> sampleTreeCherryLog(Random rand, S x, S y, double t1, double t2)
   {
     // sample a path between the two end points (start does not matter by reversibility)
-    Pair<List<S>, Double> proposed = proposal.propose(rand, x, y, t1 + t2);
+    Pair<List<S>, Double> proposed = proposeLog(rand, x, y, t1 + t2);
     final List<S> fullPath = proposed.getLeft();
     
+    if (raoBlackwellizeRooting)
+      return sampleRooting(rand, treeCherryRootingsLog(fullPath, proposed.getRight(), t1, t2));
+    
     // sample a root 
     final int rootIndex = rand.nextInt(fullPath.size());
     
@@ -119,11 +180,116 @@ public class TimeIntegratedPathSampler<S>
     
     // weight computation
     final S root = list2.get(0);
-    final double weight = 
-        (getStationaryPr(root) * computeUnnormalizedTargetPr(list1, t1) * computeUnnormalizedTargetPr(list2, t2))
-      / (proposed.getRight() * (1.0 / fullPath.size()));
+    final double logWeight = 
+        Math.log(getStationaryPr(root)) 
+      + PathScore.score(process, list1).logUnnormalizedTargetPr(t1) 
+      + PathScore.score(process, list2).logUnnormalizedTargetPr(t2)
+      - proposed.getRight() 
+      + Math.log(fullPath.size());
     
-    return Pair.of(root, weight);
+    return Pair.of(root, logWeight);
+  }
+  
+  /**
+   * Propose a path between the two end points, and weight each of its states 
+   * as the root of the cherry. 
+   * 
+   * The weight of the rooting at index k is the weight sampleTreeCherryLog() would 
+   * give to it, divided by the length of the path, so that the sum of the 
+   * weights has the same expectation as the weight returned by sampleTreeCherryLog().
+   * 
+   * @param rand
+   * @param x
+   * @param y
+   * @param t1
+   * @param t2
+   * @return A list of pairs, one for each state in the proposed path, where the first item 
+   *   is the root and the second, the log of the weight of that rooting.
+   */
+  public List<Pair<S,Double>> treeCherryRootingsLog(Random rand, S x, S y, double t1, double t2)
+  {
+    Pair<List<S>, Double> proposed = proposeLog(rand, x, y, t1 + t2);
+    return treeCherryRootingsLog(proposed.getLeft(), proposed.getRight(), t1, t2);
+  }
+  
+  /**
+   * The rates of each state of the path are enumerated once; the two jump chains are 
+   * then obtained by prefix and suffix sums, and the sojourn times of all the rootings 
+   * by one pass in each direction (see SojournTimeIntegrals.logIntegrateSuffixes()).
+   */
+  private List<Pair<S,Double>> treeCherryRootingsLog(List<S> fullPath, double logProposalPr, double t1, double t2)
+  {
+    final int size = fullPath.size();
+    final double [] holdRates = new double[size];
+    final double [] logForwardJumpPrs = new double[size - 1], logBackwardJumpPrs = new double[size - 1];
+    Rates<S> previous = null;
+    for (int k = 0; k < size; k++)
+    {
+      final Rates<S> current = ProcessUtils.readOnlyRates(process, fullPath.get(k));
+      holdRates[k] = current.holdRate();
+      if (k > 0)
+      {
+        logForwardJumpPrs[k - 1] = Math.log(previous.transitionProbability(fullPath.get(k)));
+        logBackwardJumpPrs[k - 1] = Math.log(current.transitionProbability(fullPath.get(k - 1)));
+      }
+      previous = current;
+    }
+    
+    // path 1 goes from the root at k back to the start, path 2 from the root to the end
+    final double [] 
+      logIntegrals1 = SojournTimeIntegrals.logIntegrateReversedPrefixes(holdRates, t1),
+      logIntegrals2 = SojournTimeIntegrals.logIntegrateSuffixes(holdRates, t2);
+    final double [] logJumpPrs2 = new double[size];
+    for (int k = size - 2; k >= 0; k--)
+      logJumpPrs2[k] = logJumpPrs2[k + 1] + logForwardJumpPrs[k];
+    
+    final List<Pair<S,Double>> result = Lists.newArrayListWithCapacity(size);
+    double logJumpPrs1 = 0.0;
+    for (int k = 0; k < size; k++)
+    {
+      if (k > 0)
+        logJumpPrs1 += logBackwardJumpPrs[k - 1];
+      final S root = fullPath.get(k);
+      final double logWeight = 
+          Math.log(getStationaryPr(root)) 
+        + logJumpPrs1 + logIntegrals1[k] 
+        + logJumpPrs2[k] + logIntegrals2[k] 
+        - logProposalPr;
+      result.add(Pair.of(root, logWeight));
+    }
+    return result;
+  }
+  
+  /**
+   * 
+   * @return A root sampled proportionally to the weights of the rootings, and 
+   *   the log of the sum of these weights.
+   */
+  private static <S> Pair<S,Double> sampleRooting(Random rand, List<Pair<S,Double>> rootings)
+  {
+    final double [] logWeights = new double[rootings.size()];
+    for (int k = 0; k < logWeights.length; k++)
+      logWeights[k] = rootings.get(k).getRight();
+    final double logSum = LogSum.logSumExp(logWeights);
+    if (logSum == Double.NEGATIVE_INFINITY)
+      return Pair.of(rootings.get(0).getLeft(), logSum);
+    final double [] prs = new double[logWeights.length];
+    for (int k = 0; k < logWeights.length; k++)
+      prs[k] = Math.exp(logWeights[k] - logSum);
+    return Pair.of(rootings.get(Multinomial.sampleMultinomial(rand, prs)).getLeft(), logSum);
+  }
+  
+  /**
+   * 
+   * @return A pair where the first item is the proposed path, 
+   *   and the second, the log of its proposal probability
+   */
+  private Pair<List<S>, Double> proposeLog(Random rand, S x, S y, double t)
+  {
+    if (proposal instanceof LogProposal)
+      return ((LogProposal<S>) proposal).proposeLog(rand, x, y, t);
+    Pair<List<S>, Double> proposed = proposal.propose(rand, x, y, t);
+    return Pair.of(proposed.getLeft(), Math.log(proposed.getRight()));
   }
 
   private StationaryProcess<S> stationary = null;
@@ -176,6 +342,40 @@ public class TimeIntegratedPathSampler<S>
     return sum/((double) nParticles);
   }
   
+  /**
+   * Estimate the log of the end-point transition probability. 
+   * 
+   * The weights are computed and summed in log scale, so this can be used 
+   * for long paths where the weights underflow. Note that the weights are not 
+   * added to unnormalizedWeightsStatistics in this mode.
+   * 
+   * @param x start point
+   * @param y end point
+   * @param t time between the two end points
+   * @return Estimate for log P(X_t = y|X_0 = x)
+   */
+  public double estimateLogTransitionPr(final S x, final S y, final double t)
+  {
+    List<LogSum> chunks = runChunks(nParticles, new ChunkLoop<LogSum>() {
+      @Override
+      public LogSum run(Random rand, int nParticles, boolean isSingleChunk)
+      {
+        final LogSum sum = new LogSum();
+        for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
+        {
+          Pair<List<S>, Double> proposed = proposeLog(rand, x, y, t);
+          sum.add(PathScore.score(process, proposed.getLeft()).logUnnormalizedTargetPr(t) - proposed.getRight());
+        }
+        return sum;
+      }
+    });
+    
+    final LogSum total = new LogSum();
+    for (LogSum chunk : chunks)
+      total.add(chunk);
+    return total.logValue() - Math.log(nParticles);
+  }
+  
   /**
    * Extract samples from X_{0:t} | X_0, X_t.
    * 
@@ -192,23 +392,130 @@ public class TimeIntegratedPathSampler<S>
     return (Counter) runTIPS(x, y, t, true);
   }
   
+  /**
+   * Estimate end-point transition probabilities for several times between the 
+   * same end points.
+   * 
+   * Each path is proposed once (using the first time in ts, note that PotProposal 
+   * does not depend on the time), its jump chain probability and hold rates are 
+   * computed once, and the sojourn times are then integrated for all the times 
+   * in one pass (see SojournTimeIntegrals). Since the weights are computed 
+   * separately for each time, each estimate is still unbiased even if the 
+   * proposal depends on the time. 
+   * 
+   * @param x start point
+   * @param y end point
+   * @param ts times between the two end points
+   * @return Estimates for P(X_t = y|X_0 = x), for each t in ts
+   */
+  public double [] estimateTransitionPrs(final S x, final S y, final double [] ts)
+  {
+    if (ts.length == 0)
+      return new double[0];
+    
+    List<double []> chunks = runChunks(nParticles, new ChunkLoop<double []>() {
+      @Override
+      public double [] run(Random rand, int nParticles, boolean isSingleChunk)
+      {
+        final double [] sums = new double[ts.length];
+        for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
+        {
+          Pair<List<S>, Double> proposed = proposal.propose(rand, x, y, ts[0]);
+          final double [] targetPrs = PathScore.score(process, proposed.getLeft()).unnormalizedTargetPrs(ts);
+          for (int timeIndex = 0; timeIndex < ts.length; timeIndex++)
+            sums[timeIndex] += targetPrs[timeIndex] / proposed.getRight();
+        }
+        return sums;
+      }
+    });
+    
+    final double [] result = new double[ts.length];
+    for (double [] sums : chunks)
+      for (int timeIndex = 0; timeIndex < ts.length; timeIndex++)
+        result[timeIndex] += sums[timeIndex];
+    for (int timeIndex = 0; timeIndex < ts.length; timeIndex++)
+      result[timeIndex] /= nParticles;
+    return result;
+  }
+  
 
   
+  /**
+   * Estimate end-point transition probability, processing particles in batches 
+   * until one of the stopping rules in the provided options is satisfied.
+   * 
+   * Note that nParticles is ignored, but pool, particlesPerChunk and 
+   * unnormalizedWeightsStatistics are used as in estimateTransitionPr().
+   * 
+   * @param x start point
+   * @param y end point
+   * @param t time between the two end points
+   * @param options stopping rules
+   * @return Estimate for P(X_t = y|X_0 = x), with error diagnostics
+   */
+  public AdaptiveEstimate estimateTransitionPrAdaptively(S x, S y, double t, AdaptiveOptions options)
+  {
+    if (options.batchSize <= 0)
+      throw new RuntimeException("Batch size should be positive: " + options.batchSize);
+    final long start = System.currentTimeMillis();
+    double weightSum = 0.0, weightSquareSum = 0.0;
+    int nProcessed = 0;
+    while (true)
+    {
+      final int currentBatchSize = Math.min(options.batchSize, options.maxParticles - nProcessed);
+      if (currentBatchSize > 0)
+      {
+        for (ParticleChunk<List<S>> chunk : runTIPS(x, y, t, currentBatchSize, false))
+        {
+          weightSum += chunk.weightSum;
+          weightSquareSum += chunk.weightSquareSum;
+        }
+        nProcessed += currentBatchSize;
+      }
+      final long elapsed = System.currentTimeMillis() - start;
+      final AdaptiveEstimate.StoppingReason reason = 
+          new AdaptiveEstimate(nProcessed, weightSum, weightSquareSum, elapsed, null).stoppingReason(options);
+      if (reason != null)
+        return new AdaptiveEstimate(nProcessed, weightSum, weightSquareSum, elapsed, reason);
+    }
+  }
+  
+  private Object runTIPS(S x, S y, double time, boolean keepPath)
+  {
+    List<ParticleChunk<List<S>>> chunks = runTIPS(x, y, time, nParticles, keepPath);
+    
+    if (keepPath)
+      return mergeItems(chunks);
+    
+    double sum = 0.0;
+    for (ParticleChunk<List<S>> chunk : chunks)
+      sum += chunk.weightSum;
+    return sum;
+  }
+  
+  private List<ParticleChunk<List<S>>> runTIPS(final S x, final S y, final double time, int nParticles, boolean keepPath)
+  {
+    return runParticles(nParticles, new ParticleLoop<List<S>>() {
+      @Override
+      public void run(Random rand, int nParticles, ParticleChunk<List<S>> output)
+      {
+        runTIPS(rand, x, y, time, nParticles, output);
+      }
+    }, keepPath);
+  }
+  
   /**
    * First, runTIPS(), shown below, which is just an IS algorithm.
    * 
-   * The argument ``keepPath`` controls whether sampled paths should be kept or not.
-   * If true, then return a Counter over paths; if false, return 
-   * just the sum of the weights.
+   * The particles are added to the provided ParticleChunk, which keeps 
+   * the sampled paths (grouping identical paths by adding their weights) 
+   * only if requested, and otherwise just the sum of the weights.
    * The latter is useful because it runs in constant memory and still allows for
    * computing the transition probability estimate.
    */
   @Tutorial(showSignature = true, showLink = true)
-  private Object runTIPS(S x, S y, double time, boolean keepPath)
+  private void runTIPS(Random rand, S x, S y, double time, int nParticles, ParticleChunk<List<S>> output)
   {
-    Counter<List<S>> result = keepPath ? new Counter<List<S>>() : null;
-    double sum = 0.0;
-    
     for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
     {
       // propose
@@ -216,54 +523,151 @@ public class TimeIntegratedPathSampler<S>
       
       // compute weight
       final double computeUnormalizedTargetPr = computeUnnormalizedTargetPr(proposed.getLeft(), time);
-      
-      if (unnormalizedWeightsStatistics != null) 
-        unnormalizedWeightsStatistics.addValue(computeUnormalizedTargetPr/proposed.getRight());
-      
       final double weight = computeUnormalizedTargetPr/proposed.getRight();
       
-      if (keepPath)
-        result.incrementCount(proposed.getLeft(), weight);
-      else
-        sum += weight;
+      output.add(proposed.getLeft(), weight);
     }
+  }
+  
+  /**
+   * A loop over a given number of particles, using the provided source of 
+   * randomness.
+   */
+  private static interface ParticleLoop<T>
+  {
+    public void run(Random rand, int nParticles, ParticleChunk<T> output);
+  }
+  
+  /**
+   * Run the given number of particles, either sequentially using rand, or in parallel
+   * chunks (see pool).
+   * 
+   * @return The chunks, in order.
+   */
+  private <T> List<ParticleChunk<T>> runParticles(int nParticles, final ParticleLoop<T> loop, final boolean keepItems)
+  {
+    final SummaryStatistics statistics = unnormalizedWeightsStatistics;
+    List<ParticleChunk<T>> result = runChunks(nParticles, new ChunkLoop<ParticleChunk<T>>() {
+      @Override
+      public ParticleChunk<T> run(Random rand, int nParticles, boolean isSingleChunk)
+      {
+        ParticleChunk<T> chunk = 
+          isSingleChunk ? 
+            new ParticleChunk<T>(keepItems, statistics, null) :
+            new ParticleChunk<T>(keepItems, null, statistics != null ? new double[nParticles] : null);
+        loop.run(rand, nParticles, chunk);
+        return chunk;
+      }
+    });
+    
+    for (ParticleChunk<T> chunk : result)
+      if (chunk.recordedWeights != null)
+        for (double weight : chunk.recordedWeights)
+          statistics.addValue(weight);
     
-    return keepPath ? result : sum;
+    return result;
+  }
+  
+  /**
+   * A loop over a given number of particles, using the provided source of 
+   * randomness, and producing a result of type C. 
+   */
+  private static interface ChunkLoop<C>
+  {
+    /**
+     * @param isSingleChunk true if all the particles are processed by this call
+     */
+    public C run(Random rand, int nParticles, boolean isSingleChunk);
+  }
+  
+  /**
+   * Run the given number of particles, either sequentially using rand (when pool is null), 
+   * or in chunks of particlesPerChunk particles, each with its own stream of randomness.
+   * 
+   * @return The result of each chunk, in order.
+   */
+  private <C> List<C> runChunks(final int nParticles, final ChunkLoop<C> loop)
+  {
+    if (pool == null)
+      return Collections.singletonList(loop.run(rand, nParticles, true));
+    
+    final long masterSeed = rand.nextLong();
+    final int chunkSize = particlesPerChunk;
+    return ParallelUtils.invokeChunks(pool, ParallelUtils.nChunks(nParticles, chunkSize), new ParallelUtils.ChunkTask<C>() {
+      @Override
+      public C run(int chunkIndex)
+      {
+        final int currentSize = ParallelUtils.chunkSize(nParticles, chunkSize, chunkIndex);
+        return loop.run(ParallelUtils.stream(masterSeed, chunkIndex), currentSize, false);
+      }
+    });
+  }
+  
+  private static <T> Counter<T> mergeItems(List<ParticleChunk<T>> chunks)
+  {
+    if (chunks.size() == 1)
+      return chunks.get(0).items;
+    Counter<T> result = new Counter<T>();
+    for (ParticleChunk<T> chunk : chunks)
+      for (T item : chunk.items.keySet())
+        result.incrementCount(item, chunk.items.getCount(item));
+    return result;
+  }
+  
+  /**
+   * The weighted particles processed with one stream of randomness.
+   */
+  private static class ParticleChunk<T>
+  {
+    private final Counter<T> items;
+    private final SummaryStatistics statistics;
+    private final double [] recordedWeights;
+    private double weightSum = 0.0, weightSquareSum = 0.0;
+    private int size = 0;
+    
+    private ParticleChunk(boolean keepItems, SummaryStatistics statistics, double [] recordedWeights)
+    {
+      this.items = keepItems ? new Counter<T>() : null;
+      this.statistics = statistics;
+      this.recordedWeights = recordedWeights;
+    }
+    
+    private void add(T item, double weight)
+    {
+      if (items != null)
+        items.incrementCount(item, weight);
+      if (statistics != null)
+        statistics.addValue(weight);
+      if (recordedWeights != null)
+        recordedWeights[size] = weight;
+      weightSum += weight;
+      weightSquareSum += weight * weight;
+      size++;
+    }
   }
   
   /**
    * Second, computeUnnormalizedTargetPr(), shown below, which compute the unnormalized target pr, 
    * i.e. the pr of the jumps time the 
-   * integrated waiting times.
+   * integrated waiting times. PathScore walks the path once, enumerating the rates 
+   * of each state a single time to get both the hold rates and the jump probabilities.
    */
   @Tutorial(showSignature = true, showLink = true)
   private double computeUnnormalizedTargetPr(List<S> proposedJumps, double time)
   {
-    double weight = marginalizeSojournTimes(process, proposedJumps, time);
-    for (int jumpIndex = 0; jumpIndex < proposedJumps.size() - 1; jumpIndex++)
-      weight *= ProcessUtils.transitionProbability(process, proposedJumps.get(jumpIndex), proposedJumps.get(jumpIndex+1));
-    return weight;
+    return PathScore.score(process, proposedJumps).unnormalizedTargetPr(time);
   }
   
   /**
    * And finally, marginalizeSojournTimes(), shown below, implementing Proposition 2 in
-   * the paper.
+   * the paper. The hold rates are passed to SojournTimeIntegrals, which 
+   * uses the closed form hypoexponential formula in O(n^2) time, instead of the 
+   * exponential of the (n+2) x (n+2) bidiagonal rate matrix.
    */
   @Tutorial(showSignature = true, showLink = true)
   public static <S> double marginalizeSojournTimes(Process<S> process, List<S> proposed, double t)
   {
-    // build matrix
-    final int size = proposed.size() + 1;
-    double [][] mtx = new double[size][size];
-    for (int i = 0; i < proposed.size(); i++)
-    {
-      final double curRate = ProcessUtils.holdRate(process, proposed.get(i));
-      mtx[i][i] = -curRate * t;
-      mtx[i][i+1] = curRate * t;
-    }
-    
-    // return entry 0, size-2 of the matrix exponential
-    return MatrixFunctions.expm(new DoubleMatrix(mtx)).get(0, size - 2);
+    return SojournTimeIntegrals.integrate(ProcessUtils.holdRates(process, proposed), t);
   }
 
 }
\ No newline at end of file
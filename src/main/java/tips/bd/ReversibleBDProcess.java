@@ -7,7 +7,10 @@ import blang.annotations.FactorArgument;
 import blang.annotations.FactorComponent;
 import blang.variables.RealVariable;
 import briefj.collections.Counter;
+import tips.Stamped;
 import tips.StationaryProcess;
+import tips.utils.ParallelUtils;
+import tips.utils.PoissonSampler;
 
 
 /**
@@ -17,7 +20,7 @@ import tips.StationaryProcess;
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class ReversibleBDProcess<P extends ReversibleBDProcess.Parameterization> implements StationaryProcess<Integer>
+public class ReversibleBDProcess<P extends ReversibleBDProcess.Parameterization> implements StationaryProcess<Integer>, Stamped
 {
   @FactorComponent
   public final P parameters;
@@ -152,22 +155,26 @@ public class ReversibleBDProcess<P extends ReversibleBDProcess.Parameterization>
     return Math.exp(-rate + state * Math.log(rate) - SpecialFunctions.logFactorial(state));
   }
   
+  /**
+   * The stationary distribution is Poisson(lambda/mu). The sampler for the 
+   * current mean is cached and rebuilt when the parameters change (e.g. 
+   * when they are resampled); being immutable, it is safe to share across threads.
+   */
   @Override
   public Integer sampleFromStationary(Random rand)
   {
-    double uniformDraw = rand.nextDouble();
-    
-    double massSoFar = 0.0;
-    for (int i = 0; i < MAX_STATIONARY_DRAW; i++)
+    final double mean = lambda() / mu();
+    PoissonSampler sampler = stationarySampler;
+    if (sampler == null || sampler.mean != mean)
     {
-      massSoFar += getStationaryProbability(i);
-      if (massSoFar >= uniformDraw)
-        return i;
+      if (!(mean >= 0.0) || Double.isInfinite(mean))
+        throw new InvalidParametersException(parameters);
+      sampler = new PoissonSampler(mean);
+      stationarySampler = sampler;
     }
-    
-    throw new RuntimeException();
+    return sampler.sample(rand);
   }
-  private double MAX_STATIONARY_DRAW = 100000;
+  private volatile PoissonSampler stationarySampler = null;
   
   @Override
   public String toString()
@@ -175,6 +182,16 @@ public class ReversibleBDProcess<P extends ReversibleBDProcess.Parameterization>
     return "ReversibleBDProcess(" + parameters + ")";
   }
 
+  /**
+   * Fingerprint of lambda and mu, used by TipsTreeLikelihood to detect 
+   * changes of the parameters.
+   */
+  @Override
+  public long stamp()
+  {
+    return ParallelUtils.deriveSeed(Double.doubleToLongBits(lambda()), Double.doubleToLongBits(mu()));
+  }
+
   /**
    * Required by TipsTreeLikelihood
    */
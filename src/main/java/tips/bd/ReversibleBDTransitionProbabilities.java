@@ -0,0 +1,204 @@
+package tips.bd;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import tips.CherrySampler;
+import tips.utils.LogSum;
+import bayonet.distributions.Multinomial;
+import bayonet.math.SpecialFunctions;
+
+
+
+/**
+ * Exact transition probabilities of a ReversibleBDProcess.
+ *
+ * The process is an M/M/infinity queue: after a time t, each of the x
+ * initial items survives independently with probability p = exp(-mu t),
+ * and the items immigrated in the meantime and still present are
+ * Poisson with mean (lambda/mu)(1 - p). P(x -> y, t) is therefore the
+ * convolution of a Binomial(x, p) and of that Poisson, a sum of
+ * min(x, y) + 1 terms.
+ *
+ * The transition probabilities are cached per (x, y, t, lambda, mu), so
+ * that changes of the parameters of the process are picked up. Can be
+ * used in TipsTreeLikelihood in place of TIPS (see
+ * TipsTreeLikelihood.cherrySampler), or as a ground truth in tests.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class ReversibleBDTransitionProbabilities implements CherrySampler<Integer>
+{
+  public final ReversibleBDProcess<?> process;
+
+  /**
+   * The cache is cleared when it exceeds this number of entries.
+   */
+  public int maxCacheSize = 1000000;
+
+  /**
+   * Roots whose log weight is below the log of the largest weight minus
+   * this value, past the bulk of the distribution, end the enumeration
+   * in sampleTreeCherryLog().
+   */
+  private static final double LOG_TRUNCATION = 40.0;
+
+  private final ConcurrentHashMap<Key, Double> cache = new ConcurrentHashMap<Key, Double>();
+
+  public ReversibleBDTransitionProbabilities(ReversibleBDProcess<?> process)
+  {
+    this.process = process;
+  }
+
+  public double transitionProbability(int x, int y, double t)
+  {
+    return Math.exp(logTransitionProbability(x, y, t));
+  }
+
+  /**
+   *
+   * @param x
+   * @param y
+   * @param t
+   * @return The log of the probability of being at y after a time t when starting at x,
+   *   for the current parameters of the process.
+   */
+  public double logTransitionProbability(int x, int y, double t)
+  {
+    final double lambda = process.parameters.getLambda(), mu = process.parameters.getMu();
+    final Key key = new Key(x, y, t, lambda, mu);
+    final Double cached = cache.get(key);
+    if (cached != null)
+      return cached;
+    final double result = logTransitionProbability(x, y, t, lambda, mu);
+    if (cache.size() >= maxCacheSize)
+      cache.clear();
+    cache.put(key, result);
+    return result;
+  }
+
+  /**
+   * Uncached version of logTransitionProbability(int, int, double).
+   */
+  public static double logTransitionProbability(int x, int y, double t, double lambda, double mu)
+  {
+    if (x < 0 || y < 0 || t < 0.0 || !(lambda >= 0.0) || !(mu > 0.0))
+      throw new RuntimeException("Invalid arguments: x=" + x + ", y=" + y + ", t=" + t + ", lambda=" + lambda + ", mu=" + mu);
+    if (t == 0.0)
+      return x == y ? 0.0 : Double.NEGATIVE_INFINITY;
+
+    final double
+      logSurvival = -mu * t,
+      deathPr = -Math.expm1(-mu * t),
+      logDeath = Math.log(deathPr),
+      immigrantsMean = lambda / mu * deathPr;
+
+    final LogSum result = new LogSum();
+    for (int nSurvivors = 0; nSurvivors <= Math.min(x, y); nSurvivors++)
+    {
+      final int nDeaths = x - nSurvivors;
+      final double logBinomial =
+          SpecialFunctions.logFactorial(x) - SpecialFunctions.logFactorial(nSurvivors) - SpecialFunctions.logFactorial(nDeaths)
+        + (nSurvivors == 0 ? 0.0 : nSurvivors * logSurvival)
+        + (nDeaths == 0 ? 0.0 : nDeaths * logDeath);
+      result.add(logBinomial + logPoisson(y - nSurvivors, immigrantsMean));
+    }
+    return result.logValue();
+  }
+
+  private static double logPoisson(int k, double mean)
+  {
+    if (mean == 0.0)
+      return k == 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+    return -mean + k * Math.log(mean) - SpecialFunctions.logFactorial(k);
+  }
+
+  /**
+   * Exact version of TimeIntegratedPathSampler.sampleTreeCherryLog(): the root r is
+   * sampled proportionally to pi(r) P(r -> x, t1) P(r -> y, t2), and the log weight
+   * returned is the log of the sum of these terms (the enumeration of r stops once
+   * the terms are negligible).
+   */
+  @Override
+  public Pair<Integer, Double> sampleTreeCherryLog(Random rand, Integer x, Integer y, double t1, double t2)
+  {
+    final double mean = process.parameters.getLambda() / process.parameters.getMu();
+    final double bulk = Math.max(Math.max(x, y), mean + 10.0 * Math.sqrt(mean));
+    double [] logWeights = new double[(int) bulk + 16];
+    double maxLogWeight = Double.NEGATIVE_INFINITY;
+    int nRoots = 0;
+    while (true)
+    {
+      final int root = nRoots;
+      final double logWeight =
+          Math.log(getStationaryPr(root))
+        + logTransitionProbability(root, x, t1)
+        + logTransitionProbability(root, y, t2);
+      if (nRoots == logWeights.length)
+        logWeights = Arrays.copyOf(logWeights, 2 * nRoots);
+      logWeights[nRoots++] = logWeight;
+      maxLogWeight = Math.max(maxLogWeight, logWeight);
+      // roots beyond the bulk (which covers x and y) cannot have positive terms when 
+      // none of the previous ones had, e.g. when t1 = t2 = 0 and x != y
+      if (root > bulk && (logWeight < maxLogWeight - LOG_TRUNCATION || maxLogWeight == Double.NEGATIVE_INFINITY))
+        break;
+    }
+
+    logWeights = Arrays.copyOf(logWeights, nRoots);
+    final double logSum = LogSum.logSumExp(logWeights);
+    if (logSum == Double.NEGATIVE_INFINITY)
+      return Pair.of(0, logSum);
+    final double [] prs = new double[nRoots];
+    for (int root = 0; root < nRoots; root++)
+      prs[root] = Math.exp(logWeights[root] - logSum);
+    return Pair.of(Multinomial.sampleMultinomial(rand, prs), logSum);
+  }
+
+  @Override
+  public double getStationaryPr(Integer s)
+  {
+    return process.getStationaryProbability(s);
+  }
+
+  private static final class Key
+  {
+    private final int x, y;
+    private final double t, lambda, mu;
+
+    private Key(int x, int y, double t, double lambda, double mu)
+    {
+      this.x = x;
+      this.y = y;
+      this.t = t;
+      this.lambda = lambda;
+      this.mu = mu;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int result = 31 * x + y;
+      result = 31 * result + Double.valueOf(t).hashCode();
+      result = 31 * result + Double.valueOf(lambda).hashCode();
+      result = 31 * result + Double.valueOf(mu).hashCode();
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return x == other.x && y == other.y
+          && Double.doubleToLongBits(t) == Double.doubleToLongBits(other.t)
+          && Double.doubleToLongBits(lambda) == Double.doubleToLongBits(other.lambda)
+          && Double.doubleToLongBits(mu) == Double.doubleToLongBits(other.mu);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package tips.dc;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import conifer.TreeNode;
+
+
+
+/**
+ * The particles of the standard SMC of TipsTreeLikelihood, stored as a
+ * genealogy instead of one map from tree nodes to states per particle.
+ *
+ * The states of a node are sampled once, in an array indexed by the particles
+ * of the generation where the node was processed. Only the nodes of the
+ * frontier (the roots of the subtrees not merged yet) are kept, each with an
+ * array giving, for each particle of the current generation, the index of
+ * its ancestor in the array of states. Resampling composes these index
+ * arrays with the ancestors drawn, so that the cost of a generation is
+ * proportional to the size of the frontier rather than to the number of
+ * nodes processed so far, and nodes merged into their parent are dropped.
+ *
+ * Leaves, whose state is the same for all the particles, are stored as
+ * constants.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S> The type of the states
+ */
+class ParticleGenealogy<S>
+{
+  private final Map<TreeNode, S> constants = Maps.newHashMap();
+  private final Map<TreeNode, S[]> states = Maps.newHashMap();
+
+  /**
+   * Null entries stand for the identity (the node was processed at the
+   * current generation).
+   */
+  private final Map<TreeNode, int[]> indices = Maps.newHashMap();
+
+  /**
+   * If true, after each resampling the arrays of states of which at most
+   * half of the entries are still reachable are compacted, so that the
+   * memory (and the states referenced) stay proportional to the surviving
+   * lineages.
+   */
+  private final boolean compact;
+
+  ParticleGenealogy(boolean compact)
+  {
+    this.compact = compact;
+  }
+
+  /**
+   * Add a node with the same state in all the particles (e.g. a leaf).
+   */
+  void addConstant(TreeNode node, S state)
+  {
+    constants.put(node, state);
+  }
+
+  /**
+   * Add a node processed at the current generation.
+   *
+   * @param node
+   * @param particleStates The state of the node for each particle of the
+   *   current generation (not copied)
+   */
+  void add(TreeNode node, S [] particleStates)
+  {
+    states.put(node, particleStates);
+    indices.put(node, null);
+  }
+
+  /**
+   * Remove a node which is not needed anymore (e.g. merged into its parent).
+   */
+  void remove(TreeNode node)
+  {
+    constants.remove(node);
+    states.remove(node);
+    indices.remove(node);
+  }
+
+  /**
+   *
+   * @param node
+   * @param particle
+   * @return The state of the node in the given particle of the current generation.
+   */
+  S get(TreeNode node, int particle)
+  {
+    final S [] nodeStates = states.get(node);
+    if (nodeStates == null)
+    {
+      if (!constants.containsKey(node))
+        throw new RuntimeException("Node not in the frontier: " + node);
+      return constants.get(node);
+    }
+    final int [] index = indices.get(node);
+    return nodeStates[index == null ? particle : index[particle]];
+  }
+
+  /**
+   * Start a new generation, where particle i descends from particle
+   * ancestors[i] of the current generation.
+   */
+  void resample(int [] ancestors)
+  {
+    for (TreeNode node : states.keySet())
+    {
+      final int [] index = indices.get(node);
+      final int [] newIndex = new int[ancestors.length];
+      for (int i = 0; i < ancestors.length; i++)
+        newIndex[i] = index == null ? ancestors[i] : index[ancestors[i]];
+      indices.put(node, newIndex);
+      if (compact)
+        compact(node);
+    }
+  }
+
+  /**
+   * @return The total number of states held for the non-constant nodes.
+   */
+  int nStoredStates()
+  {
+    int result = 0;
+    for (S [] nodeStates : states.values())
+      result += nodeStates.length;
+    return result;
+  }
+
+  private void compact(TreeNode node)
+  {
+    final S [] nodeStates = states.get(node);
+    final int [] index = indices.get(node);
+    final int [] newPositions = new int[nodeStates.length];
+    Arrays.fill(newPositions, -1);
+    int nReachable = 0;
+    for (int position : index)
+      if (newPositions[position] == -1)
+        newPositions[position] = nReachable++;
+    if (2 * nReachable > nodeStates.length)
+      return;
+    final S [] compacted = newStateArray(nReachable);
+    for (int position = 0; position < nodeStates.length; position++)
+      if (newPositions[position] != -1)
+        compacted[newPositions[position]] = nodeStates[position];
+    for (int i = 0; i < index.length; i++)
+      index[i] = newPositions[index[i]];
+    states.put(node, compacted);
+  }
+
+  @SuppressWarnings("unchecked")
+  static <S> S [] newStateArray(int size)
+  {
+    return (S []) new Object[size];
+  }
+}
@@ -0,0 +1,168 @@
+package tips.dc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import conifer.TreeNode;
+
+
+
+/**
+ * Least recently used cache of the particle populations of subtrees, used
+ * by TipsTreeLikelihood so that after a local change of the tree (e.g. one
+ * branch length), only the populations of the nodes between the change and
+ * the root are recomputed.
+ *
+ * Populations are indexed by a structural Key of their subtree. The memory
+ * used is bounded by a budget on the total number of distinct particles held
+ * in the cached populations. Thread safe.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S> The type of the states
+ */
+public class SubtreeCache<S>
+{
+  private final LinkedHashMap<Key, TreeNodeSample<S>> populations = new LinkedHashMap<Key, TreeNodeSample<S>>(16, 0.75f, true);
+  private long nParticlesHeld = 0, nHits = 0, nMisses = 0;
+
+  /**
+   *
+   * @param key
+   * @return The cached population, or null if absent.
+   */
+  public synchronized TreeNodeSample<S> get(Key key)
+  {
+    final TreeNodeSample<S> result = populations.get(key);
+    if (result == null)
+      nMisses++;
+    else
+      nHits++;
+    return result;
+  }
+
+  /**
+   * Add a population, evicting the least recently used ones until the total
+   * number of distinct particles held is at most budget.
+   *
+   * @param key
+   * @param population
+   * @param budget
+   */
+  public synchronized void put(Key key, TreeNodeSample<S> population, long budget)
+  {
+    final TreeNodeSample<S> previous = populations.put(key, population);
+    if (previous != null)
+      nParticlesHeld -= previous.size();
+    nParticlesHeld += population.size();
+    Iterator<TreeNodeSample<S>> iterator = populations.values().iterator();
+    while (nParticlesHeld > budget && iterator.hasNext())
+    {
+      nParticlesHeld -= iterator.next().size();
+      iterator.remove();
+    }
+  }
+
+  public synchronized void clear()
+  {
+    populations.clear();
+    nParticlesHeld = 0;
+  }
+
+  public synchronized int size()
+  {
+    return populations.size();
+  }
+
+  public synchronized long getNHits()
+  {
+    return nHits;
+  }
+
+  public synchronized long getNMisses()
+  {
+    return nMisses;
+  }
+
+  /**
+   * Structural description of a subtree for a given site: the observation at
+   * each leaf, the topology, the branch lengths, and a stamp of the
+   * configuration of the algorithm (process parameters, number of particles,
+   * etc).
+   *
+   * Keys of subtrees are built from the keys of their children, so that hashing
+   * is constant time per node, and equality is only checked in depth on hash
+   * matches.
+   */
+  public static final class Key
+  {
+    private final int site;
+    private final TreeNode leaf;
+    private final Object observation;
+    private final Key child0, child1;
+    private final double branchLength0, branchLength1;
+    private final long configuration;
+    private final int hash;
+
+    public static Key leaf(int site, TreeNode leaf, Object observation)
+    {
+      return new Key(site, leaf, observation, null, Double.NaN, null, Double.NaN, 0L);
+    }
+
+    public static Key internal(Key child0, double branchLength0, Key child1, double branchLength1, long configuration)
+    {
+      return new Key(child0.site, null, null, child0, branchLength0, child1, branchLength1, configuration);
+    }
+
+    private Key(int site, TreeNode leaf, Object observation, Key child0, double branchLength0, Key child1, double branchLength1, long configuration)
+    {
+      this.site = site;
+      this.leaf = leaf;
+      this.observation = observation;
+      this.child0 = child0;
+      this.branchLength0 = branchLength0;
+      this.child1 = child1;
+      this.branchLength1 = branchLength1;
+      this.configuration = configuration;
+      int result = site;
+      result = 31 * result + (leaf == null ? 0 : leaf.hashCode());
+      result = 31 * result + (observation == null ? 0 : observation.hashCode());
+      result = 31 * result + (child0 == null ? 0 : child0.hash);
+      result = 31 * result + Double.valueOf(branchLength0).hashCode();
+      result = 31 * result + (child1 == null ? 0 : child1.hash);
+      result = 31 * result + Double.valueOf(branchLength1).hashCode();
+      result = 31 * result + (int) (configuration ^ (configuration >>> 32));
+      this.hash = result;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return hash == other.hash
+          && site == other.site
+          && configuration == other.configuration
+          && Double.doubleToLongBits(branchLength0) == Double.doubleToLongBits(other.branchLength0)
+          && Double.doubleToLongBits(branchLength1) == Double.doubleToLongBits(other.branchLength1)
+          && equal(leaf, other.leaf)
+          && equal(observation, other.observation)
+          && equal(child0, other.child0)
+          && equal(child1, other.child1);
+    }
+
+    private static boolean equal(Object o1, Object o2)
+    {
+      return o1 == null ? o2 == null : o1.equals(o2);
+    }
+  }
+}
@@ -1,24 +1,28 @@
 package tips.dc;
 
-import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.lang3.tuple.Pair;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 
+import tips.CherrySampler;
 import tips.ForwardSampler;
 import tips.Potential;
 import tips.Proposal;
 import tips.StationaryProcess;
 import tips.TimeIntegratedPathSampler;
 import tips.bd.ReversibleBDProcess.InvalidParametersException;
+import tips.utils.ParallelUtils;
 import tips.utils.PotPropOptions;
+import tips.utils.ProcessUtils;
 import tips.utils.PotProposal;
+import tips.utils.ResamplingScheme;
 import bayonet.distributions.Multinomial;
 import bayonet.math.NumericalUtils;
 import blang.annotations.FactorArgument;
@@ -28,7 +32,6 @@ import briefj.collections.Counter;
 import briefj.collections.Tree;
 import conifer.TreeNode;
 import conifer.UnrootedTree;
-import conifer.UnrootedTreeUtils;
 import conifer.factors.UnrootedTreeLikelihood;
 
 
@@ -76,16 +79,97 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
    */
   public Random rand = new Random(1);
   
+  /**
+   * See TimeIntegratedPathSampler.raoBlackwellizeRooting.
+   */
+  public boolean raoBlackwellizeRooting = false;
+  
+  /**
+   * If non-null, used instead of TIPS to sample the roots of the cherries, 
+   * e.g. ReversibleBDTransitionProbabilities for birth death processes.
+   * 
+   * It should be based on the same process as evolutionaryProcess.
+   */
+  public CherrySampler<S> cherrySampler = null;
+  
+  /**
+   * Pool used to process the sites in parallel.
+   * 
+   * Leave null to process the sites sequentially, using rand directly.
+   * 
+   * When non-null, each site uses its own stream of randomness, derived from 
+   * the index of the site and a single draw of rand, so that the log density 
+   * does not depend on the parallelism of the pool.
+   */
+  public ForkJoinPool pool = null;
+  
+  /**
+   * When pool is non-null, the DC method also processes the two subtrees of a 
+   * node concurrently, provided the node has at least this number of leaves 
+   * below it (smaller subtrees are processed sequentially). The subtree tasks 
+   * are forked in the pool already running the sites, so both levels share 
+   * its workers.
+   * 
+   * Each subtree root processed this way uses its own stream of randomness, 
+   * derived from its preorder index, so that the log density depends on this 
+   * cutoff but not on the parallelism of the pool.
+   */
+  public int subtreeParallelCutoff = 64;
+  
+  /**
+   * If positive, the DC method caches the particle population of each subtree 
+   * and site, keyed by the leaf observations, topology and branch lengths of the 
+   * subtree and by the process parameters (see SubtreeCache), so that after a local 
+   * change of the tree only the nodes between the change and the root are recomputed.
+   * 
+   * The value is the maximum total number of distinct particles held in the cache; 
+   * the least recently used populations are evicted first.
+   * 
+   * Note that reusing populations makes the estimate depend on the history of 
+   * the evaluations.
+   */
+  public long subtreeCacheBudget = 0;
+  
+  private final SubtreeCache<S> subtreeCache = new SubtreeCache<S>();
+  
+  /**
+   * If true, the SMC_BOTTOM_UP and SMC_DFS methods drop the states of the 
+   * particles without surviving descendants after resampling (see 
+   * ParticleGenealogy).
+   */
+  public boolean compactGenealogy = true;
+  
+  /**
+   * Scheme used to draw the ancestors of the particles, in both the DC and the 
+   * standard SMC methods. The low variance schemes (e.g. SYSTEMATIC) can reach 
+   * the same variance of the log density with fewer particles.
+   */
+  public ResamplingScheme resamplingScheme = ResamplingScheme.MULTINOMIAL;
+  
+  /**
+   * The SMC_BOTTOM_UP and SMC_DFS methods resample only when the effective sample 
+   * size of the weights is below this fraction of the number of particles; otherwise 
+   * the weights are carried over to the next node. The default, 1.0, resamples at 
+   * each node (unless the weights are all equal).
+   * 
+   * Not used by the DC method, where the population of each node is built from 
+   * fresh draws from the populations of its children.
+   */
+  public double essResamplingThreshold = 1.0;
+  
   public void setNParticles(int nParticles)
   {
     this.nParticles = nParticles;
   }
   
-  private TimeIntegratedPathSampler<S> getSampler()
+  private CherrySampler<S> getSampler()
   {
+    if (cherrySampler != null)
+      return cherrySampler;
     TimeIntegratedPathSampler<S> result = new TimeIntegratedPathSampler<S>(proposal, evolutionaryProcess);
     result.nParticles = nParticles;
     result.rand = rand;
+    result.raoBlackwellizeRooting = raoBlackwellizeRooting;
     return result;
   }
   
@@ -122,37 +206,50 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
   private class CachedDensity
   {
     private final double value;
-    private final UnrootedTree tree;
     
     /**
-     * Hack: assume that the process has a good hash function to detect changes in parameters values.
+     * See TipsTreeUtils.fingerprint(); avoids keeping a copy of the tree.
+     */
+    private final long treeFingerprint;
+    
+    /**
+     * See processStamp().
      */
-    private final long processHash;
+    private final long processStamp;
     
     /**
-     * Hack: assume the observations have a good hash as well (or never change).
+     * See TipsTreeObservation.getModCount().
      */
-    private final long observationsHash;
+    private final long observationsModCount;
     
     private CachedDensity(TipsTreeLikelihood<S> currentConfig, double logDensity)
     {
       this.value = logDensity;
-      this.tree = new UnrootedTree(currentConfig.tree);
-      this.processHash = currentConfig.evolutionaryProcess.hashCode();
-      this.observationsHash = currentConfig.observations.hashCode();
+      this.treeFingerprint = TipsTreeUtils.fingerprint(currentConfig.tree);
+      this.processStamp = currentConfig.processStamp();
+      this.observationsModCount = currentConfig.observations.getModCount();
     }
 
     private boolean valid()
     {
-      if (UnrootedTreeUtils.computeTreeMetrics(this.tree, TipsTreeLikelihood.this.tree).get(UnrootedTreeUtils.TreeMetric.l1) != 0.0)
+      if (this.processStamp != processStamp())
         return false;
-      if (this.processHash != TipsTreeLikelihood.this.evolutionaryProcess.hashCode())
+      if (this.observationsModCount != observations.getModCount())
         return false;
-      if (this.observationsHash != TipsTreeLikelihood.this.observations.hashCode())
+      if (this.treeFingerprint != TipsTreeUtils.fingerprint(tree))
         return false;
       return true;
     }
   }
+  
+  /**
+   * 
+   * @return See ProcessUtils.stamp()
+   */
+  private long processStamp()
+  {
+    return ProcessUtils.stamp(evolutionaryProcess);
+  }
   private CachedDensity cached = null;
   
   private boolean testMode = false;
@@ -223,44 +320,73 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
 
   private double recomputeLogDensity_dcSMC()
   {
-    Tree<Pair<TreeNode, Double>> topologicalCentroidRooting = TipsTreeUtils.topologicalCentroidRooting(tree);
+    final Tree<Pair<TreeNode, Double>> topologicalCentroidRooting = TipsTreeUtils.topologicalCentroidRooting(tree);
+    final SubtreeIndex subtreeIndex = pool == null ? null : new SubtreeIndex(topologicalCentroidRooting);
+    if (subtreeCacheBudget <= 0)
+      subtreeCache.clear();
+    final long configuration = configurationStamp();
     
-    double result = 0.0;
-    
-    try
-    {
-      for (int site = 0; site < observations.nSites(); site++)
+    double result = sumOverSites(new SiteLogDensity() {
+      @Override
+      public double compute(int site, Random rand)
       {
-        TreeNodeSample<S> rootPopulation = divideAndConquer(site, topologicalCentroidRooting);
-        result += rootPopulation.logNormalization;
+        final Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> keys = 
+            subtreeCacheBudget > 0 ? subtreeKeys(site, topologicalCentroidRooting, configuration) : null;
+        TreeNodeSample<S> rootPopulation = subtreeIndex == null ?
+            divideAndConquer(site, topologicalCentroidRooting, rand, keys) :
+            parallelDivideAndConquer(site, topologicalCentroidRooting, rand.nextLong(), subtreeIndex, keys);
+        return rootPopulation.logNormalization;
       }
-    }
-    catch (Exception e)
-    {
-      System.err.println(e.getMessage());
-      return Double.NEGATIVE_INFINITY;
-    }
+    });
     if (Double.isNaN(result))
       return Double.NEGATIVE_INFINITY;
     
     return result;
   }
   
-  private double recomputeLogDensity_standardSMC(boolean useBottomUpTraversal)
+  private double recomputeLogDensity_standardSMC(final boolean useBottomUpTraversal)
   {
-    Tree<Pair<TreeNode, Double>> topologicalCentroidRooting = TipsTreeUtils.topologicalCentroidRooting(tree);
+    final Tree<Pair<TreeNode, Double>> topologicalCentroidRooting = TipsTreeUtils.topologicalCentroidRooting(tree);
     
+    return sumOverSites(new SiteLogDensity() {
+      @Override
+      public double compute(int site, Random rand)
+      {
+        return standardSMC(site, topologicalCentroidRooting, useBottomUpTraversal, rand);
+      }
+    });
+  }
+  
+  private static interface SiteLogDensity
+  {
+    public double compute(int site, Random rand);
+  }
+  
+  /**
+   * Sum the log densities of the sites, in site order, sequentially or on pool 
+   * (see pool). Exceptions are not caught: an InvalidParametersException at any 
+   * site ends the computation, and is caught once by recomputeLogDensity().
+   */
+  private double sumOverSites(final SiteLogDensity siteLogDensity)
+  {
     double result = 0.0;
-    
-    for (int site = 0; site < observations.nSites(); site++)
+    if (pool == null)
     {
-      standardSMCSamples = initStandardSMCSamples(site, topologicalCentroidRooting);
-      standardSMCPrs = initStandardSMCPrs();
-      standardSMCLogNorm = 0.0;
-      standardSMC(site, topologicalCentroidRooting, useBottomUpTraversal);
-      result += standardSMCLogNorm;
+      for (int site = 0; site < observations.nSites(); site++)
+        result += siteLogDensity.compute(site, rand);
+      return result;
     }
     
+    final long masterSeed = rand.nextLong();
+    List<Double> siteLogDensities = ParallelUtils.invokeChunks(pool, observations.nSites(), new ParallelUtils.ChunkTask<Double>() {
+      @Override
+      public Double run(int site)
+      {
+        return siteLogDensity.compute(site, ParallelUtils.stream(masterSeed, site));
+      }
+    });
+    for (double value : siteLogDensities)
+      result += value;
     return result;
   }
   
@@ -271,35 +397,41 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
     return result;
   }
 
-  private List<Map<TreeNode, S>> initStandardSMCSamples(int site, Tree<Pair<TreeNode, Double>> topology)
+  private ParticleGenealogy<S> initStandardSMCGenealogy(int site, Tree<Pair<TreeNode, Double>> topology)
   {
-    Map<TreeNode,S> initialParticle = Maps.newLinkedHashMap();
+    ParticleGenealogy<S> result = new ParticleGenealogy<S>(compactGenealogy);
     
     for (Tree<Pair<TreeNode, Double>> desc : topology.getPreOrderTraversal())
       if (desc.isLeaf())
       {
         TreeNode node = desc.getLabel().getLeft();
-        initialParticle.put(node, observations.get(site, node));
+        result.addConstant(node, observations.get(site, node));
       }
     
-    return Collections.singletonList(initialParticle);
+    return result;
   }
 
-  private List<Map<TreeNode,S>> standardSMCSamples = null;
-  private double [] standardSMCPrs = null;
-  private double standardSMCLogNorm = Double.NaN;
-  private void standardSMC(int siteIndex, Tree<Pair<TreeNode, Double>> root, boolean useBottomUpTraversal)
+  /**
+   * 
+   * @return The log of the normalization estimate for the given site.
+   */
+  private double standardSMC(int siteIndex, Tree<Pair<TreeNode, Double>> root, boolean useBottomUpTraversal, Random rand)
   {
+    ParticleGenealogy<S> genealogy = initStandardSMCGenealogy(siteIndex, root);
+    double [] prs = initStandardSMCPrs();
+    double logNormalization = 0.0;
     List<Tree<Pair<TreeNode, Double>>> traversalOrder = useBottomUpTraversal ? bottomUpTraversal(root) : root.getPostOrderTraversal();
     nodeLoop : for (Tree<Pair<TreeNode, Double>> node : traversalOrder)
     {
       if (node.isLeaf())
         continue nodeLoop;
 
-      TimeIntegratedPathSampler<S> sampler = getSampler();
-      final int nParticles = sampler.nParticles;
-      List<Map<TreeNode,S>> newSamples = Lists.newArrayList();
-      double [] newWeights = new double[nParticles];
+      CherrySampler<S> sampler = getSampler();
+      // the initial population has a single particle, hence is always resampled
+      final boolean resample = prs.length != nParticles || ResamplingScheme.ess(prs) < essResamplingThreshold * nParticles;
+      final int [] ancestors = resample ? resamplingScheme.resample(rand, prs, nParticles) : null;
+      final S [] newStates = ParticleGenealogy.newStateArray(nParticles);
+      double [] newLogWeights = new double[nParticles];
       
       final Tree<Pair<TreeNode,Double>>
         child0 = node.getChildren().get(0),
@@ -316,38 +448,54 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
       
       for (int i = 0; i < nParticles; i++)
       {
-        final Map<TreeNode,S> sample = standardSMCSamples.get(Multinomial.sampleMultinomial(sampler.rand, standardSMCPrs));
+        final int ancestor = resample ? ancestors[i] : i;
         
         final S 
-          childSample0 = sample.get(treeNode0),
-          childSample1 = sample.get(treeNode1);
+          childSample0 = genealogy.get(treeNode0, ancestor),
+          childSample1 = genealogy.get(treeNode1, ancestor);
         
-        final Pair<S, Double> sampleTreeCherry = sampler.sampleTreeCherry(
+        final Pair<S, Double> sampleTreeCherry = sampler.sampleTreeCherryLog(
+            rand,
             childSample0, 
             childSample1, 
             branchLength0, 
             branchLength1);
         
-        double weight = sampleTreeCherry.getRight();
+        double logWeight = sampleTreeCherry.getRight();
         
         if (!child0.isLeaf())
-          weight = weight / sampler.getStationaryPr(childSample0);
+          logWeight -= Math.log(sampler.getStationaryPr(childSample0));
         
         if (!child1.isLeaf())
-          weight = weight / sampler.getStationaryPr(childSample1);
+          logWeight -= Math.log(sampler.getStationaryPr(childSample1));
         
-        Map<TreeNode,S> newSample = Maps.newLinkedHashMap(sample);
-        newSample.put(currentNode, sampleTreeCherry.getLeft());
-        newSamples.add(newSample);
-        newWeights[i] = weight;
+        // without resampling, the weight of the previous node is carried over
+        if (!resample)
+          logWeight += Math.log(nParticles * prs[i]);
+        
+        newStates[i] = sampleTreeCherry.getLeft();
+        newLogWeights[i] = logWeight;
       }
       
+      genealogy.remove(treeNode0);
+      genealogy.remove(treeNode1);
+      if (resample)
+        genealogy.resample(ancestors);
+      genealogy.add(currentNode, newStates);
+      
+      // weights are exponentiated after subtracting their max to avoid underflow
+      final double maxLogWeight = TreeNodeSample.max(newLogWeights);
+      if (maxLogWeight == Double.NEGATIVE_INFINITY)
+        return Double.NEGATIVE_INFINITY;
+      final double [] newWeights = new double[nParticles];
+      for (int i = 0; i < nParticles; i++)
+        newWeights[i] = Math.exp(newLogWeights[i] - maxLogWeight);
       double normalization = Multinomial.normalize(newWeights);
       
-      standardSMCSamples = newSamples;
-      standardSMCPrs = newWeights;
-      standardSMCLogNorm += Math.log(normalization / nParticles);
+      prs = newWeights;
+      logNormalization += maxLogWeight + Math.log(normalization / nParticles);
     }
+    return logNormalization;
   }
 
   private List<Tree<Pair<TreeNode, Double>>> bottomUpTraversal(
@@ -374,7 +522,11 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
     return result;
   }
 
-  private TreeNodeSample<S> divideAndConquer(int siteIndex, Tree<Pair<TreeNode, Double>> node)
+  /**
+   * 
+   * @param keys The keys of the subtrees in subtreeCache, or null if caching is disabled
+   */
+  private TreeNodeSample<S> divideAndConquer(int siteIndex, Tree<Pair<TreeNode, Double>> node, Random rand, Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> keys)
   {
     final Counter<S> samples = new Counter<S>(); 
     if (node.getChildren().size() == 0)
@@ -387,52 +539,188 @@ public class TipsTreeLikelihood<S> implements GenerativeFactor
       if (node.getChildren().size() != 2)
         throw new RuntimeException("Only bifurcating trees supported (arity=" + node.getChildren().size() + ")");
       
+      final TreeNodeSample<S> cachedPopulation = cachedPopulation(node, keys);
+      if (cachedPopulation != null)
+        return cachedPopulation;
+      
       final Tree<Pair<TreeNode,Double>>
         child0 = node.getChildren().get(0),
         child1 = node.getChildren().get(1);
       
       final TreeNodeSample<S>
-        childPop0 = divideAndConquer(siteIndex, child0),
-        childPop1 = divideAndConquer(siteIndex, child1);
-      
-      final double 
-        branchLength0 = child0.getLabel().getRight(),
-        branchLength1 = child1.getLabel().getRight();
+        childPop0 = divideAndConquer(siteIndex, child0, rand, keys),
+        childPop1 = divideAndConquer(siteIndex, child1, rand, keys);
       
-      TimeIntegratedPathSampler<S> sampler = getSampler();
-      final int nParticles = sampler.nParticles;
-      for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
+      return cache(node, keys, mergeChildren(node, childPop0, childPop1, rand));
+    }
+  }
+  
+  private TreeNodeSample<S> cachedPopulation(Tree<Pair<TreeNode, Double>> node, Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> keys)
+  {
+    return keys == null ? null : subtreeCache.get(keys.get(node));
+  }
+  
+  private TreeNodeSample<S> cache(Tree<Pair<TreeNode, Double>> node, Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> keys, TreeNodeSample<S> population)
+  {
+    if (keys != null)
+      subtreeCache.put(keys.get(node), population, subtreeCacheBudget);
+    return population;
+  }
+  
+  /**
+   * 
+   * @return The key of each subtree of the rooting for the given site.
+   */
+  private Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> subtreeKeys(int site, Tree<Pair<TreeNode, Double>> root, long configuration)
+  {
+    final Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> result = new IdentityHashMap<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key>();
+    for (Tree<Pair<TreeNode, Double>> node : root.getPostOrderTraversal())
+    {
+      if (node.getChildren().size() == 0)
       {
-        final S 
-          childSample0 = childPop0.sample(sampler.rand),
-          childSample1 = childPop1.sample(sampler.rand);
-        
-        final Pair<S, Double> sampleTreeCherry = sampler.sampleTreeCherry(
-            childSample0, 
-            childSample1, 
-            branchLength0, 
-            branchLength1);
-        
-        double weight = sampleTreeCherry.getRight();
-        
-        if (!child0.isLeaf())
-          weight = weight / sampler.getStationaryPr(childSample0);
-        
-        if (!child1.isLeaf())
-          weight = weight / sampler.getStationaryPr(childSample1);
-        
-        samples.incrementCount(sampleTreeCherry.getLeft(), weight);
+        final TreeNode leaf = node.getLabel().getLeft();
+        result.put(node, SubtreeCache.Key.leaf(site, leaf, observations.get(site, leaf)));
+      }
+      else if (node.getChildren().size() == 2)
+      {
+        final Tree<Pair<TreeNode,Double>>
+          child0 = node.getChildren().get(0),
+          child1 = node.getChildren().get(1);
+        result.put(node, SubtreeCache.Key.internal(
+            result.get(child0), child0.getLabel().getRight(), 
+            result.get(child1), child1.getLabel().getRight(), 
+            configuration));
       }
+    }
+    return result;
+  }
+  
+  /**
+   * 
+   * @return A stamp of the settings which, besides the subtree, determine its 
+   *   population.
+   */
+  private long configurationStamp()
+  {
+    long result = processStamp();
+    result = 31 * result + nParticles;
+    result = 31 * result + (raoBlackwellizeRooting ? 1 : 0);
+    result = 31 * result + System.identityHashCode(cherrySampler);
+    result = 31 * result + resamplingScheme.ordinal();
+    return result;
+  }
+  
+  /**
+   * Same as divideAndConquer(), but the subtrees with at least subtreeParallelCutoff 
+   * leaves have their two children processed concurrently on pool.
+   * 
+   * @param siteSeed Seed from which the stream of each subtree is derived
+   */
+  private TreeNodeSample<S> parallelDivideAndConquer(final int siteIndex, final Tree<Pair<TreeNode, Double>> node, final long siteSeed, final SubtreeIndex subtreeIndex, 
+      final Map<Tree<Pair<TreeNode, Double>>, SubtreeCache.Key> keys)
+  {
+    final Random nodeRand = ParallelUtils.stream(siteSeed, subtreeIndex.preorderIndex(node));
+    if (node.getChildren().size() != 2 || subtreeIndex.nLeaves(node) < subtreeParallelCutoff)
+      return divideAndConquer(siteIndex, node, nodeRand, keys);
+    
+    final TreeNodeSample<S> cachedPopulation = cachedPopulation(node, keys);
+    if (cachedPopulation != null)
+      return cachedPopulation;
+    
+    List<TreeNodeSample<S>> childPops = ParallelUtils.invokeChunks(pool, 2, new ParallelUtils.ChunkTask<TreeNodeSample<S>>() {
+      @Override
+      public TreeNodeSample<S> run(int childIndex)
+      {
+        return parallelDivideAndConquer(siteIndex, node.getChildren().get(childIndex), siteSeed, subtreeIndex, keys);
+      }
+    });
+    return cache(node, keys, mergeChildren(node, childPops.get(0), childPops.get(1), nodeRand));
+  }
+  
+  /**
+   * Preorder index and number of leaves of each subtree of a rooting.
+   */
+  private static class SubtreeIndex
+  {
+    private final Map<Tree<Pair<TreeNode, Double>>, Integer> 
+      preorderIndices = new IdentityHashMap<Tree<Pair<TreeNode, Double>>, Integer>(),
+      nLeaves = new IdentityHashMap<Tree<Pair<TreeNode, Double>>, Integer>();
+    
+    private SubtreeIndex(Tree<Pair<TreeNode, Double>> root)
+    {
+      for (Tree<Pair<TreeNode, Double>> node : root.getPreOrderTraversal())
+        preorderIndices.put(node, preorderIndices.size());
+      for (Tree<Pair<TreeNode, Double>> node : root.getPostOrderTraversal())
+      {
+        int count = node.isLeaf() ? 1 : 0;
+        for (Tree<Pair<TreeNode, Double>> child : node.getChildren())
+          count += nLeaves.get(child);
+        nLeaves.put(node, count);
+      }
+    }
     
-      final double logNormalization = 
-        childPop0.logNormalization + 
-        childPop1.logNormalization +
-        Math.log(samples.totalCount()/((double) nParticles));
+    private int preorderIndex(Tree<Pair<TreeNode, Double>> node)
+    {
+      return preorderIndices.get(node);
+    }
+    
+    private int nLeaves(Tree<Pair<TreeNode, Double>> node)
+    {
+      return nLeaves.get(node);
+    }
+  }
+  
+  /**
+   * Propagate the populations of the two children of node to node.
+   */
+  private TreeNodeSample<S> mergeChildren(Tree<Pair<TreeNode, Double>> node, TreeNodeSample<S> childPop0, TreeNodeSample<S> childPop1, Random rand)
+  {
+    if (childPop0.isZero() || childPop1.isZero())
+      return TreeNodeSample.zero();
+    
+    final Tree<Pair<TreeNode,Double>>
+      child0 = node.getChildren().get(0),
+      child1 = node.getChildren().get(1);
+    
+    final double 
+      branchLength0 = child0.getLabel().getRight(),
+      branchLength1 = child1.getLabel().getRight();
+    
+    CherrySampler<S> sampler = getSampler();
+    final List<S> particles = Lists.newArrayListWithCapacity(nParticles);
+    final double [] logWeights = new double[nParticles];
+    final List<S>
+      childSamples0 = childPop0.sample(rand, resamplingScheme, nParticles),
+      childSamples1 = childPop1.sample(rand, resamplingScheme, nParticles);
+    for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
+    {
+      final S 
+        childSample0 = childSamples0.get(particleIndex),
+        childSample1 = childSamples1.get(particleIndex);
       
-      samples.normalize();
+      final Pair<S, Double> sampleTreeCherry = sampler.sampleTreeCherryLog(
+          rand,
+          childSample0, 
+          childSample1, 
+          branchLength0, 
+          branchLength1);
       
-      return new TreeNodeSample<S>(samples, logNormalization);
+      double logWeight = sampleTreeCherry.getRight();
+      
+      if (!child0.isLeaf())
+        logWeight -= Math.log(sampler.getStationaryPr(childSample0));
+      
+      if (!child1.isLeaf())
+        logWeight -= Math.log(sampler.getStationaryPr(childSample1));
+      
+      particles.add(sampleTreeCherry.getLeft());
+      logWeights[particleIndex] = logWeight;
     }
+    
+    return TreeNodeSample.fromLogWeights(
+        particles, 
+        logWeights, 
+        childPop0.logNormalization + childPop1.logNormalization);
   }
 
   @Override
@@ -15,6 +15,11 @@ public class TipsTreeObservation<S>
 {
   private final List<Map<TreeNode,S>> data = Lists.newArrayList();
   
+  /**
+   * Incremented by each call to set().
+   */
+  private long modCount = 0;
+  
   public TipsTreeObservation(int nSites)
   {
     for (int site = 0; site < nSites; site++)
@@ -34,6 +39,16 @@ public class TipsTreeObservation<S>
   public void set(int siteIndex, TreeNode node, S value)
   {
     data.get(siteIndex).put(node, value);
+    modCount++;
+  }
+  
+  /**
+   * @return The number of modifications so far, used to detect changes in 
+   *   constant time.
+   */
+  public long getModCount()
+  {
+    return modCount;
   }
   
   @Override
@@ -2,6 +2,7 @@ package tips.dc;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.jgrapht.Graphs;
@@ -14,11 +15,29 @@ import briefj.collections.Tree;
 import briefj.collections.UnorderedPair;
 import conifer.TreeNode;
 import conifer.UnrootedTree;
+import tips.utils.ParallelUtils;
 
 
 
 public class TipsTreeUtils
 {
+  /**
+   * A fingerprint of the topology and branch lengths of the tree, computed in 
+   * one pass over the edges without copying the tree. The contribution of each 
+   * edge is mixed (see ParallelUtils.deriveSeed()) and summed, so that the 
+   * result does not depend on the iteration order of the edges.
+   * 
+   * @param tree
+   * @return 
+   */
+  public static long fingerprint(UnrootedTree tree)
+  {
+    long result = 0L;
+    for (Map.Entry<UnorderedPair<TreeNode, TreeNode>, Double> entry : tree.getBranchLengths().entrySet())
+      result += ParallelUtils.deriveSeed(entry.getKey().hashCode(), Double.doubleToLongBits(entry.getValue()));
+    return result;
+  }
+  
   public static Tree<Pair<TreeNode,Double>> topologicalCentroidRooting(UnrootedTree tree)
   {
     // find a centroid
@@ -1,11 +1,13 @@
 package tips.dc;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
 import bayonet.distributions.Multinomial;
 import briefj.BriefMath;
 import briefj.collections.Counter;
+import tips.utils.ResamplingScheme;
 
 import com.google.common.collect.Lists;
 
@@ -28,10 +30,102 @@ public class TreeNodeSample<S>
     }
     this.logNormalization = logNormalization;
   }
+  
+  /**
+   * See zero().
+   */
+  private TreeNodeSample()
+  {
+    this.prs = new double[0];
+    this.logNormalization = Double.NEGATIVE_INFINITY;
+  }
+  
+  /**
+   * @return An empty population with log normalization -inf, e.g. when all the 
+   *   particles of a node have a zero weight (observations which cannot be reached 
+   *   for the current tree and parameters). A valid outcome, which makes the 
+   *   density of the site zero.
+   */
+  static <S> TreeNodeSample<S> zero()
+  {
+    return new TreeNodeSample<S>();
+  }
+  
+  /**
+   * @return True if this population has a zero normalization (see zero()).
+   */
+  boolean isZero()
+  {
+    return logNormalization == Double.NEGATIVE_INFINITY;
+  }
+  
+  /**
+   * Build a population from weighted particles, grouping identical particles. 
+   * 
+   * The weights are given in log scale, and their maximum is subtracted before 
+   * exponentiating them, so that they do not underflow.
+   * 
+   * @param particles
+   * @param logWeights
+   * @param childrenLogNormalization The log normalization of the populations the 
+   *   particles were built from
+   * @return A population with log normalization childrenLogNormalization plus the 
+   *   log of the average weight, or zero() if all the weights are zero.
+   */
+  static <S> TreeNodeSample<S> fromLogWeights(List<S> particles, double [] logWeights, double childrenLogNormalization)
+  {
+    final double maxLogWeight = max(logWeights);
+    if (maxLogWeight == Double.NEGATIVE_INFINITY)
+      return zero();
+    final Counter<S> samples = new Counter<S>();
+    for (int i = 0; i < logWeights.length; i++)
+      samples.incrementCount(particles.get(i), Math.exp(logWeights[i] - maxLogWeight));
+    final double logNormalization = 
+      childrenLogNormalization + 
+      maxLogWeight + 
+      Math.log(samples.totalCount()/((double) logWeights.length));
+    samples.normalize();
+    return new TreeNodeSample<S>(samples, logNormalization);
+  }
+  
+  static double max(double [] values)
+  {
+    double result = Double.NEGATIVE_INFINITY;
+    for (double value : values)
+      result = Math.max(result, value);
+    return result;
+  }
+  
+  /**
+   * @return The number of distinct particles.
+   */
+  int size()
+  {
+    return prs.length;
+  }
+  
   public S sample(Random rand)
   {
     return samples.get(Multinomial.sampleMultinomial(rand, prs));
   }
+  
+  /**
+   * 
+   * @param rand
+   * @param scheme
+   * @param nDraws
+   * @return Draws from the population, in a random order (so that the draws from 
+   *   two populations can be paired by index).
+   */
+  List<S> sample(Random rand, ResamplingScheme scheme, int nDraws)
+  {
+    final List<S> result = Lists.newArrayListWithCapacity(nDraws);
+    for (int index : scheme.resample(rand, prs, nDraws))
+      result.add(samples.get(index));
+    Collections.shuffle(result, rand);
+    return result;
+  }
+  
   public Counter<S> asCounter()
   {
     Counter<S> result = new Counter<S>();
@@ -1,12 +1,38 @@
 package tips.pip;
 
-import tips.Potential;
+import tips.IncrementalPotential;
 
 
 
 
-public class PIPPotential implements Potential<PIPString>
+public class PIPPotential implements IncrementalPotential<PIPString>
 {
+  /**
+   * Constant time update, using the edit recorded in the neighbor and the 
+   * block structure cached in current.
+   */
+  @Override
+  public double get(PIPString neighbor, PIPString current, double currentPotential, PIPString target)
+  {
+    if (Double.isInfinite(currentPotential) || !neighbor.isEditOf(current))
+      return get(neighbor, target);
+    
+    final int symbol = neighbor.editSymbol();
+    if (symbol == -1)
+      return neighbor.editIsInsertion() ? currentPotential + 1 : currentPotential - 1;
+    if (symbol == 0) // the number of zeroes no longer matches
+      return neighbor.editIsInsertion() ? get(neighbor, target) : Double.POSITIVE_INFINITY;
+    
+    // a +1 added to or removed from a block
+    final int block = current.zeroesBefore(neighbor.editPosition());
+    final int 
+      currentNPlus = current.blockPlusses()[block],
+      targetNPlus = target.plusses()[block];
+    if (neighbor.editIsInsertion())
+      return currentPotential + (currentNPlus < targetNPlus ? -1 : +1);
+    else
+      return currentPotential + (currentNPlus > targetNPlus ? -1 : +1);
+  }
 
   @Override
   public double get(PIPString proposed, PIPString target)
@@ -19,8 +45,9 @@ public class PIPPotential implements Potential<PIPString>
     
     int pot = 0;
     
-    for (int curChar : proposed.characters)
+    for (int i = 0; i < proposed.size(); i++)
     {
+      final int curChar = proposed.get(i);
       if (curChar == 0)
       {
         pot += Math.abs(targetPlusses[interZeroIdx] - curNPlus);
@@ -1,4 +1,5 @@
 package tips.pip;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
@@ -11,64 +12,46 @@ import muset.SequenceId;
 import org.apache.commons.lang3.tuple.Pair;
 
 import tips.Process;
+import tips.Stamped;
+import tips.utils.ParallelUtils;
+import tips.utils.PoissonSampler;
 import bayonet.distributions.Exponential;
-import bayonet.math.SpecialFunctions;
 import briefj.collections.Counter;
 
 
-public class PIPProcess implements Process<PIPString>
+public class PIPProcess implements Process<PIPString>, Stamped
 {
   public final double lambda, mu;
   
+  /**
+   * Stationary length distribution, Poisson(lambda/mu); null if there is 
+   * no stationary distribution (e.g. mu = 0).
+   */
+  private final PoissonSampler stationaryLengths;
+  
   public PIPProcess(double lambda, double mu)
   {
     super();
     this.lambda = lambda;
     this.mu = mu;
+    final double meanLength = lambda/mu;
+    this.stationaryLengths = meanLength >= 0.0 && !Double.isInfinite(meanLength) ? new PoissonSampler(meanLength) : null;
   }
   
   public MSAPoset sampleStationary(Random rand)
   {
-    return createInitMSA(repeat(star, (int)samplePoisson(rand, lambda/mu)));
+    if (stationaryLengths == null)
+      throw new RuntimeException("No stationary distribution for lambda=" + lambda + ", mu=" + mu);
+    return createInitMSA(repeat(star, stationaryLengths.sample(rand)));
   }
   
-  // Copied from numerical recipes 
-  private static double oldm = -1, g, sq, alxm;
-  public static double samplePoisson(Random random, double rate) {
-    double xm = rate;
-    double em, t, y;
-
-    if (xm < 12.0) {
-      if (xm != oldm) {
-        oldm=xm;
-        g=Math.exp(-xm);
-      }
-      em = -1;
-      t=1.0;
-      do {
-        em += 1.0;
-        t *= random.nextDouble();
-      } while (t > g);
-    } 
-    else {
-      if (xm != oldm) {
-        oldm=xm;
-        sq=Math.sqrt(2.0*xm);
-        alxm=Math.log(xm);
-        g=xm*alxm-SpecialFunctions.lnGamma(xm+1.0);
-      }
-      do 
-      {
-        do 
-        {
-          y=Math.tan(Math.PI*random.nextDouble());
-          em=sq*y+xm;
-        } while (em < 0.0);
-        em=Math.floor(em);
-        t=0.9*(1.0+y*y)*Math.exp(em*alxm-SpecialFunctions.lnGamma(em+1.0)-g);
-      } while (random.nextDouble() > t);
-    }
-    return (int)em;
+  /**
+   * Thread safe; when drawing repeatedly with the same rate, prefer 
+   * keeping a PoissonSampler.
+   */
+  public static double samplePoisson(Random random, double rate) 
+  {
+    return new PoissonSampler(rate).sample(random);
   }
   
   public MSAPoset createInitMSA(String str)
@@ -131,6 +114,104 @@ public class PIPProcess implements Process<PIPString>
     return curMSA;
   }
   
+  /**
+   * Equivalent to keepOnlyEndPts(sample(rand, createInitMSA(initSeq), branchLength), first, second), 
+   * consuming the same random numbers, but only keeping track of where each 
+   * surviving character of initSeq currently is instead of building a new 
+   * MSAPoset at each event. The MSAPoset is materialized once at the end.
+   */
+  public MSAPoset sampleEndPoints(Random rand, String initSeq, double branchLength, SequenceId first, SequenceId second)
+  {
+    final int [] origins = sampleEndPointOrigins(rand, initSeq.length(), branchLength, null);
+    Map<SequenceId,String> newSeqns = new LinkedHashMap<SequenceId, String>();
+    newSeqns.put(first,  initSeq);
+    newSeqns.put(second, repeat(star, origins.length));
+    MSAPoset result = new MSAPoset(newSeqns);
+    for (int i = 0; i < origins.length; i++)
+      if (origins[i] != INSERTED)
+        if (!result.tryAdding(new Edge(origins[i], i, first, second)))
+          throw new RuntimeException();
+    return result;
+  }
+  
+  /**
+   * Simulate a branch started at a sequence of length initLength, consuming the same 
+   * random numbers as sample(Random, MSAPoset, double).
+   * 
+   * @param survivors If non-null, the simulation is abandoned as soon as a character 
+   *   i of the initial sequence with survivors[i] true is deleted.
+   * @return For each position of the final sequence, the index of the character of 
+   *   the initial sequence it is aligned to, or INSERTED; null if abandoned.
+   */
+  public int [] sampleEndPointOrigins(Random rand, int initLength, double branchLength, boolean [] survivors)
+  {
+    if (branchLength <= 0.0)
+      throw new RuntimeException();
+    
+    int [] origins = new int[initLength + 16];
+    int len = initLength;
+    for (int i = 0; i < len; i++)
+      origins[i] = i;
+    double lengthConsumed = 0.0;
+    
+    for (int i =0 ; i < MAX_FWD_SAMPLE_STEPS; i++)
+    {
+      // same draws, in the same order, as sample(Random, MSAPoset)
+      double rate = lambda + mu * len;
+      double insPr = lambda / rate;
+      double time = Exponential.generate(rand, rate); 
+      boolean isIns = sampleBern(insPr, rand);
+      int pos = rand.nextInt(len + (isIns ? +1 : 0));
+      
+      lengthConsumed += time;
+      if (lengthConsumed > branchLength)
+        break;
+      
+      if (isIns)
+      {
+        if (len == origins.length)
+          origins = Arrays.copyOf(origins, 2 * len);
+        System.arraycopy(origins, pos, origins, pos + 1, len - pos);
+        origins[pos] = INSERTED;
+        len++;
+      }
+      else
+      {
+        if (survivors != null && origins[pos] != INSERTED && survivors[origins[pos]])
+          return null;
+        System.arraycopy(origins, pos + 1, origins, pos, len - pos - 1);
+        len--;
+      }
+    }
+    
+    return Arrays.copyOf(origins, len);
+  }
+  
+  /**
+   * Marks, in the result of sampleEndPointOrigins(), the characters absent from 
+   * the initial sequence.
+   */
+  public static final int INSERTED = -1;
+  
+  /**
+   * 
+   * @param msa An alignment of two sequences
+   * @param first
+   * @param second
+   * @return For each position of the second sequence, the position of the first 
+   *   sequence it is aligned to, or INSERTED (the same representation as 
+   *   sampleEndPointOrigins()).
+   */
+  public static int [] endPointOrigins(MSAPoset msa, SequenceId first, SequenceId second)
+  {
+    final int [] result = new int[msa.sequences().get(second).length()];
+    Arrays.fill(result, INSERTED);
+    for (Column c : msa.columns())
+      if (c.getPoints().containsKey(first) && c.getPoints().containsKey(second))
+        result[c.getPoints().get(second)] = c.getPoints().get(first);
+    return result;
+  }
+  
   public static MSAPoset keepOnlyEndPts(MSAPoset msa, SequenceId first, SequenceId second)
   {
     SequenceId tF = indexedTaxon(0), tL = indexedTaxon(msa.sequences().size()-1);
@@ -193,21 +274,52 @@ public class PIPProcess implements Process<PIPString>
   }
   
 
+  /**
+   * Fingerprint of lambda and mu, used by TipsTreeLikelihood to detect 
+   * changes of the process.
+   */
+  @Override
+  public long stamp()
+  {
+    return ParallelUtils.deriveSeed(Double.doubleToLongBits(lambda), Double.doubleToLongBits(mu));
+  }
+
   @Override
   public Counter<PIPString> rates(PIPString point)
   {
     Counter<PIPString> rates = new Counter<PIPString>();
+    final int n = point.size();
       
-    // add ins
-    double nInsPoints = point.characters.size()+1;
-    for (int i = 0; i < nInsPoints; i++)
-      rates.incrementCount(new PIPString(point.characters.subList(0, i), +1, point.characters.subList(i, point.characters.size())), lambda / nInsPoints);
+    // add ins: inserting a +1 anywhere in or next to a run of +1 gives the same string
+    double nInsPoints = n+1;
+    for (int i = 0; i <= n; )
+    {
+      final int end = runEnd(point, i, +1);
+      rates.incrementCount(PIPString.insertion(point, i, +1), (end - i + 1) * lambda / nInsPoints);
+      i = end + 1;
+    }
       
-    // add dels
-    for (int i = 0; i < point.characters.size(); i++)
-      rates.incrementCount(new PIPString(point.characters.subList(0, i), point.characters.subList(i+1, point.characters.size())), mu);   
+    // add dels: deleting any symbol of a run of equal symbols gives the same string
+    for (int i = 0; i < n; )
+    {
+      final int end = runEnd(point, i, point.get(i));
+      rates.incrementCount(PIPString.deletion(point, i), (end - i) * mu);   
+      i = end;
+    }
       
     return rates;
   }
   
+  /**
+   * @return The first position at or after start not holding symbol (or the 
+   *   length of the string if there is none).
+   */
+  private static int runEnd(PIPString point, int start, int symbol)
+  {
+    int result = start;
+    while (result < point.size() && point.get(result) == symbol)
+      result++;
+    return result;
+  }
+  
 }
\ No newline at end of file
@@ -1,21 +1,71 @@
 package tips.pip;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import tips.utils.Fingerprinted;
+import tips.utils.ParallelUtils;
+
 
 /**
  * A representation of strings specialized for end point simulation.
  * 
+ * The symbols -1, 0, +1 are packed with 2 bits each in an array of longs 
+ * (SYMBOLS_PER_WORD per word, unused bits set to zero), and the hash code 
+ * is computed once at construction, since these strings are used as keys 
+ * in the Counters returned by PIPProcess.rates(). A 64-bit fingerprint of 
+ * the packed words is also available, for PathFingerprint.
+ * 
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class PIPString
+public class PIPString implements Fingerprinted
 {
   /**
+   * Read-only view of the symbols (boxes on access; use size() and get() 
+   * in inner loops).
    */
   public final List<Integer> characters;
-  private int [] cachedPluses = null;
-  private int cachedNZeroes = Integer.MIN_VALUE;
+  private final long [] words;
+  private final int length;
+  private final int hash;
+  private static final int SYMBOLS_PER_WORD = 32;
+  
+  /**
+   * Filled before being published, so that strings can be shared across threads.
+   */
+  private volatile int [] cachedPluses = null;
+  
+  /**
+   * The edit creating this string from its parent, when built with insertion() 
+   * or deletion(), used by PIPPotential to update potentials incrementally.
+   * editPosition is NO_EDIT otherwise.
+   */
+  private final int editPosition, editSymbol, parentLength;
+  private final boolean editIsInsertion;
+  static final int NO_EDIT = -1;
+  
+  /**
+   * See ensureBlockCache(). Both arrays are published through this single 
+   * reference, so that strings can be shared across threads.
+   */
+  private volatile BlockCache blockCache = null;
+  
+  /**
+   * Number of +1 between consecutive zeroes (ignoring -1), and number of zeroes 
+   * before each position.
+   */
+  private static final class BlockCache
+  {
+    private final int [] blockPlusses, zeroesBefore;
+    
+    private BlockCache(int [] blockPlusses, int [] zeroesBefore)
+    {
+      this.blockPlusses = blockPlusses;
+      this.zeroesBefore = zeroesBefore;
+    }
+  }
   
   @Override
   public String toString()
@@ -26,11 +76,30 @@ public class PIPString
   public String toStars() 
   {
     StringBuilder result = new StringBuilder();
-    for (int i = 0; i < characters.size(); i++)
+    for (int i = 0; i < length; i++)
       result.append("*");
     return result.toString();
   }
   
+  /**
+   * @return The number of symbols.
+   */
+  public int size()
+  {
+    return length;
+  }
+  
+  /**
+   * @param position
+   * @return The symbol (-1, 0 or +1) at the given position.
+   */
+  public int get(int position)
+  {
+    if (position < 0 || position >= length)
+      throw new IndexOutOfBoundsException("" + position);
+    return (int) ((words[position / SYMBOLS_PER_WORD] >>> (2 * (position % SYMBOLS_PER_WORD))) & 3L) - 1;
+  }
+  
   public int [] plusses() 
   {
     ensurePlusZeroCache();
@@ -39,24 +108,25 @@ public class PIPString
   public int zeroes()
   {
     ensurePlusZeroCache();
-    return cachedNZeroes;
+    return cachedPluses.length - 1;
   }
   
   private void ensurePlusZeroCache()
   {
     if (cachedPluses != null) return;
-    cachedNZeroes = 0;
-    for (int i : characters)
-      if (i == 0)
-        cachedNZeroes++;
-    cachedPluses = new int[cachedNZeroes+1];
+    int nZeroes = 0;
+    for (int i = 0; i < length; i++)
+      if (get(i) == 0)
+        nZeroes++;
+    final int [] pluses = new int[nZeroes+1];
     int curNPlus = 0;
     int interZeroIdx = 0;
-    for (int curChar : characters)
+    for (int i = 0; i < length; i++)
     {
+      final int curChar = get(i);
       if (curChar == 0)
       {
-        cachedPluses[interZeroIdx] = curNPlus;
+        pluses[interZeroIdx] = curNPlus;
         curNPlus = 0;
         interZeroIdx++;
       }
@@ -65,29 +135,218 @@ public class PIPString
       else
         throw new RuntimeException();
     }
-    cachedPluses[interZeroIdx] = curNPlus;
+    pluses[interZeroIdx] = curNPlus;
+    cachedPluses = pluses;
+  }
+  
+  
+  /**
+   * Number of +1 in each of the blocks delimited by zeroes (tolerating -1, 
+   * contrary to plusses()).
+   */
+  int [] blockPlusses()
+  {
+    return ensureBlockCache().blockPlusses;
+  }
+  
+  /**
+   * @return The number of zeroes before the given position (in 0, 1, ..., length).
+   */
+  int zeroesBefore(int position)
+  {
+    return ensureBlockCache().zeroesBefore[position];
+  }
+  
+  private BlockCache ensureBlockCache()
+  {
+    final BlockCache current = blockCache;
+    if (current != null) 
+      return current;
+    final int [] zeroesBefore = new int[length + 1];
+    int nZeroes = 0;
+    for (int i = 0; i < length; i++)
+    {
+      zeroesBefore[i] = nZeroes;
+      if (get(i) == 0)
+        nZeroes++;
+    }
+    zeroesBefore[length] = nZeroes;
+    final int [] blockPlusses = new int[nZeroes + 1];
+    for (int i = 0; i < length; i++)
+      if (get(i) == +1)
+        blockPlusses[zeroesBefore[i]]++;
+    final BlockCache result = new BlockCache(blockPlusses, zeroesBefore);
+    blockCache = result;
+    return result;
   }
   
+  /**
+   * 
+   * @param parent
+   * @param position
+   * @param symbol
+   * @return The string obtained by inserting symbol before the given position of parent.
+   */
+  public static PIPString insertion(PIPString parent, int position, int symbol)
+  {
+    if (position < 0 || position > parent.length)
+      throw new IndexOutOfBoundsException("" + position);
+    final int newLength = parent.length + 1;
+    final long [] result = new long[nWords(newLength)];
+    final int word = position / SYMBOLS_PER_WORD, offset = 2 * (position % SYMBOLS_PER_WORD);
+    System.arraycopy(parent.words, 0, result, 0, word);
+    // shift the symbols at and after position up by one slot, carrying across words
+    final long source = word < parent.words.length ? parent.words[word] : 0L;
+    final long lowMask = (1L << offset) - 1L;
+    result[word] = (source & lowMask) | ((source & ~lowMask) << 2) | (encode(symbol) << offset);
+    long carry = (source & ~lowMask) >>> 62;
+    for (int w = word + 1; w < result.length; w++)
+    {
+      final long current = w < parent.words.length ? parent.words[w] : 0L;
+      result[w] = (current << 2) | carry;
+      carry = current >>> 62;
+    }
+    return new PIPString(result, newLength, position, symbol, true, parent.length);
+  }
   
+  /**
+   * 
+   * @param parent
+   * @param position
+   * @return The string obtained by deleting the symbol at the given position of parent.
+   */
+  public static PIPString deletion(PIPString parent, int position)
+  {
+    final int deleted = parent.get(position);
+    final int newLength = parent.length - 1;
+    final long [] source = parent.words;
+    final long [] result = new long[source.length];
+    final int word = position / SYMBOLS_PER_WORD, offset = 2 * (position % SYMBOLS_PER_WORD);
+    System.arraycopy(source, 0, result, 0, word);
+    // shift the symbols after position down by one slot, borrowing from the next word
+    for (int w = word; w < source.length; w++)
+    {
+      final long next = w + 1 < source.length ? source[w + 1] : 0L;
+      final long shifted;
+      if (w == word)
+        shifted = (source[w] & ((1L << offset) - 1L)) | (offset == 62 ? 0L : (source[w] >>> (offset + 2)) << offset);
+      else
+        shifted = source[w] >>> 2;
+      result[w] = shifted | ((next & 3L) << 62);
+    }
+    return new PIPString(Arrays.copyOf(result, nWords(newLength)), newLength, position, deleted, false, parent.length);
+  }
+  
+  /**
+   * 
+   * @param parent
+   * @return True if this string was built with insertion() or deletion() from a 
+   *   string of the same length as parent (the caller is responsible for checking 
+   *   it is indeed a neighbor of parent, e.g. by getting it from PIPProcess.rates(parent)).
+   */
+  boolean isEditOf(PIPString parent)
+  {
+    return editPosition != NO_EDIT && parentLength == parent.length;
+  }
+  
+  int editPosition()
+  {
+    return editPosition;
+  }
+  
+  int editSymbol()
+  {
+    return editSymbol;
+  }
+  
+  boolean editIsInsertion()
+  {
+    return editIsInsertion;
+  }
+  
+  /**
+   * The symbols are copied, later changes to the list are not reflected in 
+   * this string.
+   * 
+   * @param characters
+   */
   public PIPString(List<Integer> characters)
   {
-    this.characters = characters;
+    this(pack(characters), characters.size(), NO_EDIT, 0, false, NO_EDIT);
   }
   public PIPString(String s)
   {
-    String [] split = s.split("\\s+");
-    this.characters = new ArrayList<Integer>();
-    for (String str : split)
-      this.characters.add(Integer.parseInt(str));
+    this(parse(s));
   }
   
   public PIPString(List<Integer> l1, Integer pt, List<Integer> l3)
   {
-    this.characters = new ArrayList<Integer>();
-    this.characters.addAll(l1);
-    if (pt != null) this.characters.add(pt);
-    this.characters.addAll(l3);
+    this(concatenate(l1, pt, l3));
   } 
+  
+  private PIPString(long [] words, int length, int editPosition, int editSymbol, boolean editIsInsertion, int parentLength)
+  {
+    this.words = words;
+    this.length = length;
+    this.hash = 31 * Arrays.hashCode(words) + length;
+    this.characters = new CharacterView();
+    this.editPosition = editPosition;
+    this.editSymbol = editSymbol;
+    this.editIsInsertion = editIsInsertion;
+    this.parentLength = parentLength;
+  }
+  
+  private class CharacterView extends AbstractList<Integer>
+  {
+    @Override
+    public Integer get(int index)
+    {
+      return PIPString.this.get(index);
+    }
+
+    @Override
+    public int size()
+    {
+      return length;
+    }
+  }
+  
+  private static int nWords(int length)
+  {
+    return (length + SYMBOLS_PER_WORD - 1) / SYMBOLS_PER_WORD;
+  }
+  
+  private static long encode(int symbol)
+  {
+    if (symbol < -1 || symbol > 1)
+      throw new RuntimeException("Invalid PIP symbol: " + symbol);
+    return symbol + 1;
+  }
+  
+  private static long [] pack(List<Integer> characters)
+  {
+    final long [] result = new long[nWords(characters.size())];
+    for (int i = 0; i < characters.size(); i++)
+      result[i / SYMBOLS_PER_WORD] |= encode(characters.get(i)) << (2 * (i % SYMBOLS_PER_WORD));
+    return result;
+  }
+  
+  private static List<Integer> parse(String s)
+  {
+    List<Integer> result = new ArrayList<Integer>();
+    for (String str : s.split("\\s+"))
+      result.add(Integer.parseInt(str));
+    return result;
+  }
+  
+  private static List<Integer> concatenate(List<Integer> l1, Integer pt, List<Integer> l3)
+  {
+    List<Integer> result = new ArrayList<Integer>();
+    result.addAll(l1);
+    if (pt != null) result.add(pt);
+    result.addAll(l3);
+    return result;
+  }
   public PIPString(List<Integer> l1, List<Integer> l2)
   {
     this(l1,null,l2);
@@ -95,10 +354,14 @@ public class PIPString
   @Override
   public int hashCode()
   {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result
-        + ((characters == null) ? 0 : characters.hashCode());
+    return hash;
+  }
+  @Override
+  public long fingerprint()
+  {
+    long result = length;
+    for (long word : words)
+      result = ParallelUtils.deriveSeed(result, word);
     return result;
   }
   @Override
@@ -111,13 +374,7 @@ public class PIPString
     if (getClass() != obj.getClass())
       return false;
     PIPString other = (PIPString) obj;
-    if (characters == null)
-    {
-      if (other.characters != null)
-        return false;
-    } else if (!characters.equals(other.characters))
-      return false;
-    return true;
+    return hash == other.hash && length == other.length && Arrays.equals(words, other.words);
   }
   
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package tips.utils;
+
+
+
+/**
+ * The output of the adaptive mode of TimeIntegratedPathSampler: an estimate 
+ * together with the diagnostics computed from the unnormalized weights.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class AdaptiveEstimate
+{
+  public static enum StoppingReason 
+  { 
+    RELATIVE_STANDARD_ERROR, ESS, MAX_PARTICLES, MAX_TIME 
+  }
+  
+  /**
+   * The IS estimate, i.e. the average of the unnormalized weights.
+   */
+  public final double estimate;
+  
+  /**
+   * The estimated standard deviation of the estimate, divided by the estimate.
+   * 
+   * Infinite if it cannot be computed (less than two particles, or only zero weights).
+   */
+  public final double relativeStandardError;
+  
+  /**
+   * Effective sample size, (sum of weights)^2 / (sum of squared weights).
+   */
+  public final double ess;
+  
+  public final int nParticles;
+  
+  public final long elapsedMillis;
+  
+  public final StoppingReason stoppingReason;
+  
+  /**
+   * 
+   * @param nParticles
+   * @param weightSum
+   * @param weightSquareSum
+   * @param elapsedMillis
+   * @param stoppingReason
+   */
+  public AdaptiveEstimate(int nParticles, double weightSum, double weightSquareSum, long elapsedMillis, StoppingReason stoppingReason)
+  {
+    this.nParticles = nParticles;
+    this.elapsedMillis = elapsedMillis;
+    this.stoppingReason = stoppingReason;
+    this.estimate = weightSum / nParticles;
+    this.ess = weightSquareSum > 0.0 ? weightSum * weightSum / weightSquareSum : 0.0;
+    if (nParticles < 2 || !(weightSum > 0.0))
+      this.relativeStandardError = Double.POSITIVE_INFINITY;
+    else
+    {
+      final double sampleVariance = Math.max(0.0, (weightSquareSum - weightSum * estimate) / (nParticles - 1));
+      this.relativeStandardError = Math.sqrt(sampleVariance / nParticles) / estimate;
+    }
+  }
+  
+  /**
+   * 
+   * @param options
+   * @return The first stopping rule of the provided options satisfied by this estimate, 
+   *   or null if none is. 
+   */
+  public StoppingReason stoppingReason(AdaptiveOptions options)
+  {
+    if (nParticles < options.minParticles && nParticles < options.maxParticles)
+      return null;
+    if (options.targetRelativeStandardError > 0.0 && relativeStandardError <= options.targetRelativeStandardError)
+      return StoppingReason.RELATIVE_STANDARD_ERROR;
+    if (options.targetESS > 0.0 && ess >= options.targetESS)
+      return StoppingReason.ESS;
+    if (nParticles >= options.maxParticles)
+      return StoppingReason.MAX_PARTICLES;
+    if (options.maxMillis > 0 && elapsedMillis >= options.maxMillis)
+      return StoppingReason.MAX_TIME;
+    return null;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "estimate=" + estimate + ", relativeStandardError=" + relativeStandardError 
+        + ", ess=" + ess + ", nParticles=" + nParticles + ", elapsedMillis=" + elapsedMillis 
+        + ", stoppingReason=" + stoppingReason;
+  }
+}
@@ -0,0 +1,53 @@
+package tips.utils;
+
+import briefj.opt.Option;
+
+
+
+/**
+ * Stopping rules for the adaptive mode of TimeIntegratedPathSampler, where 
+ * particles are processed in batches until one of the targets or one of the 
+ * caps is reached.
+ * 
+ * Set a target to a non-positive value to disable it.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class AdaptiveOptions
+{
+  /**
+   * Number of particles processed between two checks of the stopping rules.
+   */
+  @Option
+  public int batchSize = 1000;
+  
+  /**
+   * Stop once the relative standard error of the estimate is below this value.
+   */
+  @Option
+  public double targetRelativeStandardError = 0.01;
+  
+  /**
+   * Stop once the effective sample size is above this value.
+   */
+  @Option
+  public double targetESS = -1;
+  
+  /**
+   * Never stop before this number of particles.
+   */
+  @Option
+  public int minParticles = 1000;
+  
+  /**
+   * Stop after this number of particles even if the targets are not reached.
+   */
+  @Option
+  public int maxParticles = 1000000;
+  
+  /**
+   * Stop after this number of milliseconds even if the targets are not reached (non-positive for no limit).
+   */
+  @Option
+  public long maxMillis = -1;
+}
@@ -1,8 +1,12 @@
 package tips.utils;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import muset.MSAPoset;
 
@@ -10,7 +14,6 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
 import tips.Process;
 import tips.Proposal;
-import tips.TimeIntegratedPathSampler;
 import tips.pip.PIPMain;
 import tips.pip.PIPProcess;
 
@@ -43,9 +46,8 @@ public class Baselines
     
     for (int i = 0; i < nPart ; i++)
     {
-      MSAPoset temp = process.createInitMSA(ref.sequences().get(PIPMain.ta));
       // simulate
-      MSAPoset proposed = PIPProcess.keepOnlyEndPts(process.sample(rand, temp, bl), PIPMain.ta, PIPMain.tb);
+      MSAPoset proposed = process.sampleEndPoints(rand, ref.sequences().get(PIPMain.ta), bl, PIPMain.ta, PIPMain.tb);
       
       if (Sets.newLinkedHashSet(ref.edges()).equals(Sets.newLinkedHashSet(proposed.edges())) && ref.sequences().equals(proposed.sequences()))
       {
@@ -60,6 +62,70 @@ public class Baselines
     
     return (num+1)/(nPart+2);
   }
+  
+  /**
+   * Same estimator as standardIS, with the particles split into chunks of 
+   * particlesPerChunk particles run on pool (sequentially if pool is null), 
+   * each chunk with its own stream of randomness derived from a seed drawn 
+   * from rand, so that the output does not depend on the number of threads.
+   * 
+   * A particle is abandoned as soon as it deletes a character of the start 
+   * sequence that ref keeps, and end points are compared through their 
+   * alignment signature (PIPProcess.endPointOrigins()) rather than by building 
+   * MSAPosets.
+   * 
+   * weightStats, if non-null, receives the 0/1 weights grouped by chunk.
+   */
+  public static double standardIS(
+      MSAPoset ref,
+      final double bl, 
+      final PIPProcess process, 
+      final int nPart, 
+      Random rand, 
+      ForkJoinPool pool,
+      final int particlesPerChunk,
+      SummaryStatistics weightStats)
+  {
+    final int initLength = ref.sequences().get(PIPMain.ta).length();
+    final String endSeq = ref.sequences().get(PIPMain.tb);
+    final int [] target = PIPProcess.endPointOrigins(ref, PIPMain.ta, PIPMain.tb);
+    final boolean [] survivors = new boolean[initLength];
+    for (int origin : target)
+      if (origin != PIPProcess.INSERTED)
+        survivors[origin] = true;
+    // simulated sequences are made of stars only
+    final boolean reachable = endSeq.equals(PIPProcess.repeat(PIPProcess.star, endSeq.length()));
+    
+    final long masterSeed = rand.nextLong();
+    final int nChunks = ParallelUtils.nChunks(nPart, particlesPerChunk);
+    List<int []> chunks = ParallelUtils.invokeChunks(pool, nChunks, new ParallelUtils.ChunkTask<int []>() {
+      @Override
+      public int [] run(int chunkIndex)
+      {
+        final Random chunkRand = ParallelUtils.stream(masterSeed, chunkIndex);
+        final int size = ParallelUtils.chunkSize(nPart, particlesPerChunk, chunkIndex);
+        int nAccepted = 0;
+        for (int i = 0; i < size; i++)
+        {
+          final int [] origins = process.sampleEndPointOrigins(chunkRand, initLength, bl, survivors);
+          if (reachable && origins != null && Arrays.equals(origins, target))
+            nAccepted++;
+        }
+        return new int[]{nAccepted, size};
+      }
+    });
+    
+    double num = 0.0;
+    for (int [] chunk : chunks)
+    {
+      num += chunk[0];
+      if (weightStats != null)
+        for (int i = 0; i < chunk[1]; i++)
+          weightStats.addValue(i < chunk[0] ? 1.0 : 0.0);
+    }
+    
+    return (num+1)/(nPart+2);
+  }
 
   /**
    * Use the set of paths generated by the proposals and TIPS's marginalization 
@@ -83,14 +149,98 @@ public class Baselines
       if (!covered.contains(proposed))
       {
         covered.add(proposed);
-        double integral = TimeIntegratedPathSampler.marginalizeSojournTimes(process, proposed, t);
-        for (int jIdx = 0; jIdx < proposed.size() - 1; jIdx++)
-          integral *= ProcessUtils.transitionProbability(process, proposed.get(jIdx), proposed.get(jIdx+1));
-        sum += integral;
+        sum += PathScore.score(process, proposed).unnormalizedTargetPr(t);
       }
     }
     
     return sum;
   }
+  
+  /**
+   * Same as exhaustiveSum, but paths are deduplicated using their 128-bit 
+   * PathFingerprint in a concurrent set, so that memory does not grow 
+   * with the length of the paths (only for paths satisfying 
+   * PathFingerprint.isInjective(), e.g. of Integers or PIPStrings; other paths 
+   * are kept and compared with equals(), so that a collision of the hash codes 
+   * of their states never drops a path), and the proposals are run in chunks of 
+   * triesPerChunk on pool, each chunk with its own stream of randomness derived 
+   * from a seed drawn from rand (when pool is null, the tries are run 
+   * sequentially using rand, proposing the same paths as exhaustiveSum).
+   * 
+   * The set of paths covered does not depend on the number of threads; the 
+   * sum only up to rounding.
+   * 
+   * @param verifyExact If true, the paths deduplicated by fingerprint are also 
+   *   kept to check that distinct paths never share a fingerprint (throws a 
+   *   RuntimeException otherwise).
+   */
+  public static <S> double exhaustiveSum(
+      Random rand, 
+      final int nTries, 
+      final Process<S> process, 
+      final Proposal<S> proposal, 
+      final S x, final S y, 
+      final double t,
+      ForkJoinPool pool,
+      final int triesPerChunk,
+      final boolean verifyExact)
+  {
+    final Set<PathFingerprint> covered = Collections.newSetFromMap(new ConcurrentHashMap<PathFingerprint, Boolean>());
+    final Set<List<S>> coveredNonInjective = Collections.newSetFromMap(new ConcurrentHashMap<List<S>, Boolean>());
+    final ConcurrentHashMap<PathFingerprint, List<S>> coveredPaths = verifyExact ? new ConcurrentHashMap<PathFingerprint, List<S>>() : null;
+    
+    if (pool == null)
+      return exhaustiveSumChunk(rand, nTries, process, proposal, x, y, t, covered, coveredNonInjective, coveredPaths);
+    
+    final long masterSeed = rand.nextLong();
+    List<Double> chunks = ParallelUtils.invokeChunks(pool, ParallelUtils.nChunks(nTries, triesPerChunk), new ParallelUtils.ChunkTask<Double>() {
+      @Override
+      public Double run(int chunkIndex)
+      {
+        return exhaustiveSumChunk(ParallelUtils.stream(masterSeed, chunkIndex), ParallelUtils.chunkSize(nTries, triesPerChunk, chunkIndex), 
+            process, proposal, x, y, t, covered, coveredNonInjective, coveredPaths);
+      }
+    });
+    
+    double sum = 0.0;
+    for (double chunk : chunks)
+      sum += chunk;
+    return sum;
+  }
+  
+  private static <S> double exhaustiveSumChunk(
+      Random rand, 
+      int nTries, 
+      Process<S> process, 
+      Proposal<S> proposal, 
+      S x, S y, 
+      double t,
+      Set<PathFingerprint> covered,
+      Set<List<S>> coveredNonInjective,
+      ConcurrentHashMap<PathFingerprint, List<S>> coveredPaths)
+  {
+    double sum = 0.0;
+    for (int trial = 0; trial < nTries; trial++)
+    {
+      List<S> proposed = proposal.propose(rand, x, y, t).getLeft();
+      if (!PathFingerprint.isInjective(proposed))
+      {
+        if (coveredNonInjective.add(proposed))
+          sum += PathScore.score(process, proposed).unnormalizedTargetPr(t);
+        continue;
+      }
+      final PathFingerprint fingerprint = PathFingerprint.of(proposed);
+      if (coveredPaths != null)
+      {
+        final List<S> previous = coveredPaths.putIfAbsent(fingerprint, proposed);
+        if (previous != null && !previous.equals(proposed))
+          throw new RuntimeException("Distinct paths with the same fingerprint " + fingerprint + ": " + previous + ", " + proposed);
+      }
+      // only the thread adding the fingerprint first scores the path
+      if (covered.add(fingerprint))
+        sum += PathScore.score(process, proposed).unnormalizedTargetPr(t);
+    }
+    return sum;
+  }
 
 }
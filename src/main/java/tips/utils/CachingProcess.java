@@ -0,0 +1,266 @@
+package tips.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import briefj.collections.Counter;
+
+import tips.Process;
+import tips.Rates;
+import tips.ReadOnlyRatesProcess;
+import tips.Stamped;
+import tips.StationaryProcess;
+
+
+
+/**
+ * Decorates a Process by memoizing its rates in a size-bounded, least recently 
+ * used cache, so that the neighborhood of a state visited by many particles is 
+ * computed only once.
+ * 
+ * The cached rates are immutable (see Rates and ReadOnlyRatesProcess), and rates() 
+ * returns a fresh copy, so the contract of Process is preserved. Use wrap() to 
+ * preserve StationaryProcess as well.
+ * 
+ * The cache assumes the rates of the underlying process do not change; call clear() 
+ * otherwise (e.g. after changing parameters). The stamp is the one of the 
+ * underlying process, so that the caches of TipsTreeLikelihood still detect 
+ * such changes.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S> The type of the states
+ */
+public class CachingProcess<S> implements ReadOnlyRatesProcess<S>, Stamped
+{
+  /**
+   * How the cache is shared across threads.
+   */
+  public static enum Concurrency
+  {
+    /**
+     * A single cache, which should only be used by one thread.
+     */
+    NONE,
+    
+    /**
+     * One cache per thread, each of maximum size maxSize.
+     */
+    PER_THREAD,
+    
+    /**
+     * A single cache, split into independently locked segments.
+     */
+    STRIPED
+  }
+  
+  private static final int N_STRIPES = 16;
+  
+  private final Process<S> process;
+  private final int maxSize;
+  private final Concurrency concurrency;
+  
+  private LruCache<S> cache;
+  private ThreadLocal<LruCache<S>> threadCaches;
+  private LruCache<S> [] stripes;
+  
+  private final AtomicLong 
+    nHits = new AtomicLong(), 
+    nMisses = new AtomicLong();
+  
+  /**
+   * 
+   * @param process
+   * @param maxSize The maximum number of states for which the rates are kept 
+   * @param concurrency
+   * @return A caching decorator for process, which is also a StationaryProcess 
+   *   if process is one.
+   */
+  public static <S> CachingProcess<S> wrap(Process<S> process, int maxSize, Concurrency concurrency)
+  {
+    if (process instanceof StationaryProcess)
+      return new Stationary<S>((StationaryProcess<S>) process, maxSize, concurrency);
+    return new CachingProcess<S>(process, maxSize, concurrency);
+  }
+  
+  public CachingProcess(Process<S> process, int maxSize, Concurrency concurrency)
+  {
+    if (maxSize <= 0)
+      throw new RuntimeException("Cache size should be positive: " + maxSize);
+    this.process = process;
+    this.maxSize = maxSize;
+    this.concurrency = concurrency;
+    clear();
+  }
+  
+  @Override
+  public Rates<S> readOnlyRates(S point)
+  {
+    switch (concurrency)
+    {
+      case NONE       : return readOnlyRates(cache, point);
+      case PER_THREAD : return readOnlyRates(threadCaches.get(), point);
+      case STRIPED    :
+        final LruCache<S> stripe = stripes[stripeIndex(point)];
+        synchronized (stripe)
+        {
+          final Rates<S> cached = stripe.get(point);
+          if (cached != null)
+          {
+            nHits.incrementAndGet();
+            return cached;
+          }
+        }
+        // compute outside of the lock so that other threads are not blocked
+        nMisses.incrementAndGet();
+        final Rates<S> computed = new Rates<S>(process.rates(point));
+        synchronized (stripe)
+        {
+          stripe.put(point, computed);
+        }
+        return computed;
+      default : throw new RuntimeException();
+    }
+  }
+  
+  private Rates<S> readOnlyRates(LruCache<S> cache, S point)
+  {
+    Rates<S> result = cache.get(point);
+    if (result != null)
+    {
+      nHits.incrementAndGet();
+      return result;
+    }
+    nMisses.incrementAndGet();
+    result = new Rates<S>(process.rates(point));
+    cache.put(point, result);
+    return result;
+  }
+
+  /**
+   * @return A new copy of the cached rates.
+   */
+  @Override
+  public Counter<S> rates(S point)
+  {
+    return readOnlyRates(point).toCounter();
+  }
+  
+  /**
+   * Empty the cache (the hit and miss counters are not reset).
+   * 
+   * With PER_THREAD, this should not be called while other threads use this object.
+   */
+  @SuppressWarnings("unchecked")
+  public void clear()
+  {
+    switch (concurrency)
+    {
+      case NONE : 
+        cache = new LruCache<S>(maxSize); 
+        break;
+      case PER_THREAD : 
+        threadCaches = new ThreadLocal<LruCache<S>>() {
+          @Override
+          protected LruCache<S> initialValue()
+          {
+            return new LruCache<S>(maxSize);
+          }
+        };
+        break;
+      case STRIPED :
+        stripes = new LruCache[N_STRIPES];
+        for (int i = 0; i < N_STRIPES; i++)
+          stripes[i] = new LruCache<S>((maxSize + N_STRIPES - 1) / N_STRIPES);
+        break;
+      default : throw new RuntimeException();
+    }
+  }
+  
+  public long getNHits()
+  {
+    return nHits.get();
+  }
+  
+  public long getNMisses()
+  {
+    return nMisses.get();
+  }
+  
+  /**
+   * 
+   * @return The fraction of calls to readOnlyRates() served from the cache.
+   */
+  public double hitRate()
+  {
+    final long hits = getNHits(), total = hits + getNMisses();
+    return total == 0 ? 0.0 : ((double) hits) / total;
+  }
+  
+  public Process<S> getProcess()
+  {
+    return process;
+  }
+  
+  /**
+   * See ProcessUtils.stamp()
+   */
+  @Override
+  public long stamp()
+  {
+    return ProcessUtils.stamp(process);
+  }
+  
+  private int stripeIndex(S point)
+  {
+    final int hash = point.hashCode();
+    return (hash ^ (hash >>> 16)) & (N_STRIPES - 1);
+  }
+  
+  private static class LruCache<S> extends LinkedHashMap<S, Rates<S>>
+  {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+    
+    private LruCache(int maxSize)
+    {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<S, Rates<S>> eldest)
+    {
+      return size() > maxSize;
+    }
+  }
+  
+  /**
+   * A CachingProcess for a StationaryProcess (the stationary distribution 
+   * is not cached).
+   */
+  public static class Stationary<S> extends CachingProcess<S> implements StationaryProcess<S>
+  {
+    private final StationaryProcess<S> stationaryProcess;
+    
+    public Stationary(StationaryProcess<S> process, int maxSize, Concurrency concurrency)
+    {
+      super(process, maxSize, concurrency);
+      this.stationaryProcess = process;
+    }
+
+    @Override
+    public double getStationaryProbability(S state)
+    {
+      return stationaryProcess.getStationaryProbability(state);
+    }
+
+    @Override
+    public S sampleFromStationary(Random rand)
+    {
+      return stationaryProcess.sampleFromStationary(rand);
+    }
+  }
+}
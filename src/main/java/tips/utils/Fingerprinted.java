@@ -0,0 +1,18 @@
+package tips.utils;
+
+
+
+/**
+ * States providing a 64-bit fingerprint, used by PathFingerprint in place of 
+ * their 32-bit hash code.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public interface Fingerprinted
+{
+  /**
+   * @return A 64-bit hash, equal for equal objects, and such that distinct 
+   *   objects are very unlikely to share it.
+   */
+  public long fingerprint();
+}
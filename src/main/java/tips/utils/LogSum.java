@@ -0,0 +1,77 @@
+package tips.utils;
+
+
+
+/**
+ * Accumulates a sum of positive numbers given in log scale, without 
+ * underflow or overflow (streaming log-sum-exp).
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class LogSum
+{
+  private double max = Double.NEGATIVE_INFINITY;
+  
+  /**
+   * The sum of exp(logValue - max) over the values added so far.
+   */
+  private double scaledSum = 0.0;
+  
+  /**
+   * Add exp(logValue) to the sum.
+   * 
+   * @param logValue
+   */
+  public void add(double logValue)
+  {
+    if (logValue == Double.NEGATIVE_INFINITY)
+      return;
+    if (Double.isNaN(logValue))
+      throw new RuntimeException("NaN log value");
+    if (logValue <= max)
+      scaledSum += Math.exp(logValue - max);
+    else
+    {
+      scaledSum = scaledSum * Math.exp(max - logValue) + 1.0;
+      max = logValue;
+    }
+  }
+  
+  /**
+   * Add the sum accumulated in another LogSum.
+   * 
+   * @param other
+   */
+  public void add(LogSum other)
+  {
+    if (other.scaledSum > 0.0)
+      add(other.logValue());
+  }
+  
+  /**
+   * 
+   * @return The log of the sum (negative infinity if empty).
+   */
+  public double logValue()
+  {
+    return max + Math.log(scaledSum);
+  }
+  
+  /**
+   * 
+   * @param logValues
+   * @return log(sum_i exp(logValues[i])).
+   */
+  public static double logSumExp(double [] logValues)
+  {
+    double max = Double.NEGATIVE_INFINITY;
+    for (double logValue : logValues)
+      max = Math.max(max, logValue);
+    if (max == Double.NEGATIVE_INFINITY)
+      return max;
+    double sum = 0.0;
+    for (double logValue : logValues)
+      sum += Math.exp(logValue - max);
+    return max + Math.log(sum);
+  }
+}
@@ -0,0 +1,155 @@
+package tips.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+
+
+/**
+ * Utilities to split Monte Carlo work into chunks processed on a
+ * ForkJoinPool, each chunk with its own stream of randomness.
+ *
+ * The streams are derived deterministically from a master seed and
+ * the chunk index, and the results are returned in chunk order, so
+ * that the output of a computation does not depend on the number of
+ * threads used to run it.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class ParallelUtils
+{
+  /**
+   * A unit of work indexed by its chunk.
+   *
+   * @param <T> The type of the result of each chunk
+   */
+  public static interface ChunkTask<T>
+  {
+    public T run(int chunkIndex);
+  }
+
+  /**
+   * Mix a master seed and a stream index into the seed of a sub-stream
+   * (using the SplitMix64 finalizer, so that nearby indices give unrelated
+   * seeds).
+   *
+   * @param masterSeed
+   * @param streamIndex
+   * @return
+   */
+  public static long deriveSeed(long masterSeed, long streamIndex)
+  {
+    long z = masterSeed + (streamIndex + 1L) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   *
+   * @param masterSeed
+   * @param streamIndex
+   * @return A new Random for the sub-stream with the given index.
+   */
+  public static Random stream(long masterSeed, long streamIndex)
+  {
+    return new Random(deriveSeed(masterSeed, streamIndex));
+  }
+
+  /**
+   *
+   * @param nItems
+   * @param chunkSize
+   * @return The number of chunks needed to cover nItems.
+   */
+  public static int nChunks(int nItems, int chunkSize)
+  {
+    if (chunkSize <= 0)
+      throw new RuntimeException("Chunk size should be positive: " + chunkSize);
+    return (nItems + chunkSize - 1) / chunkSize;
+  }
+
+  /**
+   *
+   * @param nItems
+   * @param chunkSize
+   * @param chunkIndex
+   * @return The number of items in the chunk with the given index (only the
+   *   last one can be smaller than chunkSize).
+   */
+  public static int chunkSize(int nItems, int chunkSize, int chunkIndex)
+  {
+    return Math.min(chunkSize, nItems - chunkIndex * chunkSize);
+  }
+
+  /**
+   * Run the chunks 0, 1, ..., nChunks-1.
+   *
+   * If pool is null, the chunks are run sequentially in the current thread.
+   * If called from a task already running in pool, the chunks are forked
+   * directly (so that nested parallel loops share the same workers instead of
+   * oversubscribing the machine); from any other thread, including the workers
+   * of other pools, they are submitted to pool.
+   *
+   * @param pool
+   * @param nChunks
+   * @param task
+   * @return The results, in chunk order.
+   */
+  public static <T> List<T> invokeChunks(ForkJoinPool pool, int nChunks, final ChunkTask<T> task)
+  {
+    final List<T> result = new ArrayList<T>(nChunks);
+
+    if (pool == null || nChunks <= 1)
+    {
+      for (int chunkIndex = 0; chunkIndex < nChunks; chunkIndex++)
+        result.add(task.run(chunkIndex));
+      return result;
+    }
+
+    final List<ChunkRecursiveTask<T>> subTasks = new ArrayList<ChunkRecursiveTask<T>>(nChunks);
+    for (int chunkIndex = 0; chunkIndex < nChunks; chunkIndex++)
+      subTasks.add(new ChunkRecursiveTask<T>(task, chunkIndex));
+
+    if (ForkJoinTask.getPool() == pool)
+      ForkJoinTask.invokeAll(subTasks);
+    else
+      pool.invoke(new RecursiveTask<Void>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected Void compute()
+        {
+          ForkJoinTask.invokeAll(subTasks);
+          return null;
+        }
+      });
+
+    for (ChunkRecursiveTask<T> subTask : subTasks)
+      result.add(subTask.join());
+
+    return result;
+  }
+
+  private static class ChunkRecursiveTask<T> extends RecursiveTask<T>
+  {
+    private static final long serialVersionUID = 1L;
+    private final ChunkTask<T> task;
+    private final int chunkIndex;
+
+    private ChunkRecursiveTask(ChunkTask<T> task, int chunkIndex)
+    {
+      this.task = task;
+      this.chunkIndex = chunkIndex;
+    }
+
+    @Override
+    protected T compute()
+    {
+      return task.run(chunkIndex);
+    }
+  }
+}
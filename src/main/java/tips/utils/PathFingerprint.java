@@ -0,0 +1,94 @@
+package tips.utils;
+
+import java.util.List;
+
+
+
+/**
+ * A 128-bit fingerprint of a path, built by folding the fingerprints of the
+ * states into two independently seeded SplitMix64 chains (see
+ * ParallelUtils.deriveSeed), followed by the length of the path. The 
+ * fingerprint of a state is Fingerprinted.fingerprint() when it implements 
+ * it (e.g. PIPString), and its hash code otherwise.
+ *
+ * Used to deduplicate large numbers of paths without keeping them in
+ * memory. Two paths whose states have the same sequence of fingerprints
+ * always collide: the fingerprint only identifies the paths for which 
+ * isInjective() holds (up to collisions of 64 bits), other paths (e.g. of 
+ * Strings, whose hash codes often collide) should be compared directly.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class PathFingerprint
+{
+  public final long high, low;
+
+  private static final long
+    HIGH_SEED = 0x6A09E667F3BCC908L,
+    LOW_SEED  = 0xBB67AE8584CAA73BL;
+
+  private PathFingerprint(long high, long low)
+  {
+    this.high = high;
+    this.low = low;
+  }
+
+  public static <S> PathFingerprint of(List<S> path)
+  {
+    long high = HIGH_SEED, low = LOW_SEED;
+    for (S state : path)
+    {
+      final long stateFingerprint = fingerprint(state);
+      high = ParallelUtils.deriveSeed(high, stateFingerprint);
+      low = ParallelUtils.deriveSeed(low, stateFingerprint);
+    }
+    return new PathFingerprint(
+        ParallelUtils.deriveSeed(high, path.size()),
+        ParallelUtils.deriveSeed(low, path.size()));
+  }
+
+  /**
+   * @return True if the fingerprint of each state of path determines it, up to 
+   *   collisions of 64-bit fingerprints: states implementing Fingerprinted, 
+   *   Integers (whose hash code is their value) and nulls.
+   */
+  public static boolean isInjective(List<?> path)
+  {
+    for (Object state : path)
+      if (state != null && !(state instanceof Fingerprinted) && !(state instanceof Integer))
+        return false;
+    return true;
+  }
+
+  private static long fingerprint(Object state)
+  {
+    if (state == null)
+      return 0L;
+    if (state instanceof Fingerprinted)
+      return ((Fingerprinted) state).fingerprint();
+    return state.hashCode();
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return (int) (low ^ (low >>> 32));
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (obj == null || getClass() != obj.getClass())
+      return false;
+    PathFingerprint other = (PathFingerprint) obj;
+    return high == other.high && low == other.low;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%016x%016x", high, low);
+  }
+}
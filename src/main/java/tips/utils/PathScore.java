@@ -0,0 +1,112 @@
+package tips.utils;
+
+import java.util.List;
+
+import briefj.collections.Counter;
+
+import tips.Process;
+import tips.Rates;
+import tips.ReadOnlyRatesProcess;
+
+
+
+/**
+ * The quantities needed to score a jump chain path under a process: the hold 
+ * rate of each visited state and the log probability of the jumps. Both are 
+ * computed in a single walk along the path, enumerating the rates of each 
+ * state once.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class PathScore
+{
+  /**
+   * The hold rates r_0, r_1, ..., r_n of the states visited.
+   */
+  public final double [] holdRates;
+  
+  /**
+   * The log probability of the jump chain, i.e. the sum over the jumps 
+   * x_i -> x_{i+1} of log(rate(x_i, x_{i+1}) / r_i).
+   */
+  public final double logJumpChainProbability;
+  
+  private PathScore(double [] holdRates, double logJumpChainProbability)
+  {
+    this.holdRates = holdRates;
+    this.logJumpChainProbability = logJumpChainProbability;
+  }
+  
+  /**
+   * 
+   * @param process
+   * @param path
+   * @return The score of the path, computed with one enumeration of the rates per state.
+   */
+  public static <S> PathScore score(Process<S> process, List<S> path)
+  {
+    final int size = path.size();
+    final double [] holdRates = new double[size];
+    double logJumpChainProbability = 0.0;
+    if (process instanceof ReadOnlyRatesProcess)
+    {
+      final ReadOnlyRatesProcess<S> ratesProcess = (ReadOnlyRatesProcess<S>) process;
+      for (int i = 0; i < size; i++)
+      {
+        final Rates<S> rates = ratesProcess.readOnlyRates(path.get(i));
+        holdRates[i] = rates.holdRate();
+        if (i < size - 1)
+          logJumpChainProbability += Math.log(rates.transitionProbability(path.get(i + 1)));
+      }
+    }
+    else
+      for (int i = 0; i < size; i++)
+      {
+        final Counter<S> rates = process.rates(path.get(i));
+        holdRates[i] = rates.totalCount();
+        if (i < size - 1)
+          logJumpChainProbability += Math.log(rates.getCount(path.get(i + 1)) / holdRates[i]);
+      }
+    return new PathScore(holdRates, logJumpChainProbability);
+  }
+  
+  public double jumpChainProbability()
+  {
+    return Math.exp(logJumpChainProbability);
+  }
+  
+  /**
+   * 
+   * @param t
+   * @return The probability of the jump chain times the integral over the sojourn 
+   *   times compatible with a total time t (see SojournTimeIntegrals).
+   */
+  public double unnormalizedTargetPr(double t)
+  {
+    return jumpChainProbability() * SojournTimeIntegrals.integrate(holdRates, t);
+  }
+  
+  /**
+   * 
+   * @param t
+   * @return The log of unnormalizedTargetPr(t), computed without underflow.
+   */
+  public double logUnnormalizedTargetPr(double t)
+  {
+    return logJumpChainProbability + SojournTimeIntegrals.logIntegrate(holdRates, t);
+  }
+  
+  /**
+   * 
+   * @param ts
+   * @return unnormalizedTargetPr(t) for each t in ts, sharing work across times.
+   */
+  public double [] unnormalizedTargetPrs(double [] ts)
+  {
+    final double jumpChainProbability = jumpChainProbability();
+    final double [] result = SojournTimeIntegrals.integrate(holdRates, ts);
+    for (int i = 0; i < result.length; i++)
+      result[i] *= jumpChainProbability;
+    return result;
+  }
+}
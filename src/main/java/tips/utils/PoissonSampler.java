@@ -0,0 +1,123 @@
+package tips.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bayonet.math.SpecialFunctions;
+
+
+
+/**
+ * Samples from a Poisson distribution with a fixed mean.
+ *
+ * Immutable, hence safe to share across threads: the constants depending
+ * on the mean are computed once in the constructor, and sample() does not
+ * allocate.
+ *
+ * Small means use inversion on a precomputed table of the cumulative
+ * distribution (one uniform per draw). Large means use the transformed
+ * rejection with squeeze (PTRS) of Hormann (1993), whose expected number
+ * of uniforms per draw stays bounded as the mean grows.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class PoissonSampler
+{
+  /**
+   * The mean of the distribution.
+   */
+  public final double mean;
+
+  /**
+   * Means below this value use the table, the others PTRS (which
+   * requires a mean of at least 10).
+   */
+  public static final double TABLE_THRESHOLD = 30.0;
+
+  /**
+   * The table stops once the remaining tail mass is below this value (draws
+   * falling in the tail return the last entry).
+   */
+  private static final double TAIL_MASS = 1e-16;
+
+  private final double [] cumulative;
+
+  private final double logMean, sqrtMean, a, b, vr, logInvAlpha;
+
+  public PoissonSampler(double mean)
+  {
+    if (!(mean >= 0.0) || Double.isInfinite(mean))
+      throw new RuntimeException("Invalid Poisson mean: " + mean);
+    this.mean = mean;
+    this.logMean = Math.log(mean);
+    this.sqrtMean = Math.sqrt(mean);
+    if (mean < TABLE_THRESHOLD)
+    {
+      this.cumulative = cumulativeTable(mean);
+      this.a = this.b = this.vr = this.logInvAlpha = Double.NaN;
+    }
+    else
+    {
+      this.cumulative = null;
+      this.b = 0.931 + 2.53 * sqrtMean;
+      this.a = -0.059 + 0.02483 * b;
+      this.vr = 0.9277 - 3.6224 / (b - 2.0);
+      this.logInvAlpha = Math.log(1.1239 + 1.1328 / (b - 3.4));
+    }
+  }
+
+  /**
+   * @param rand
+   * @return A Poisson distributed draw.
+   */
+  public int sample(Random rand)
+  {
+    if (cumulative != null)
+    {
+      final int index = Arrays.binarySearch(cumulative, rand.nextDouble());
+      return Math.min(index >= 0 ? index + 1 : -(index + 1), cumulative.length - 1);
+    }
+
+    while (true)
+    {
+      final double
+        u = rand.nextDouble() - 0.5,
+        v = rand.nextDouble(),
+        us = 0.5 - Math.abs(u);
+      final long k = (long) Math.floor((2.0 * a / us + b) * u + mean + 0.43);
+      if (us >= 0.07 && v <= vr)
+        return (int) k;
+      if (k < 0 || (us < 0.013 && v > us))
+        continue;
+      if (Math.log(v) + logInvAlpha - Math.log(a / (us * us) + b) <= -mean + k * logMean - SpecialFunctions.lnGamma(k + 1.0))
+        return (int) k;
+    }
+  }
+
+  private static double [] cumulativeTable(double mean)
+  {
+    double [] result = new double[16];
+    double pr = Math.exp(-mean), sum = 0.0;
+    int k = 0;
+    while (true)
+    {
+      if (k == result.length)
+        result = Arrays.copyOf(result, 2 * k);
+      sum += pr;
+      result[k] = sum;
+      if (k >= mean && 1.0 - sum < TAIL_MASS)
+        break;
+      k++;
+      pr *= mean / k;
+      if (pr == 0.0)
+        break;
+    }
+    return Arrays.copyOf(result, k + 1);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "PoissonSampler(mean=" + mean + ")";
+  }
+}
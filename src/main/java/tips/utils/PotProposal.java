@@ -9,7 +9,7 @@ import java.util.Random;
 import org.apache.commons.lang3.tuple.Pair;
 
 import tips.Potential;
-import tips.Proposal;
+import tips.LogProposal;
 import tips.Process;
 
 import bayonet.math.NumericalUtils;
@@ -27,7 +27,7 @@ import briefj.collections.Counter;
  *
  * @param <S>
  */
-public class PotProposal<S> implements Proposal<S>
+public class PotProposal<S> implements LogProposal<S>
 {
   private final Process<S> process;
   private final Potential<S> potential;
@@ -43,6 +43,13 @@ public class PotProposal<S> implements Proposal<S>
   }
   
   public Pair<List<S>, Double> propose(Random rand, S x, S y, double t)
+  {
+    Pair<List<S>, Double> result = proposeLog(rand, x, y, t);
+    return Pair.of(result.getLeft(), Math.exp(result.getRight()));
+  }
+  
+  @Override
+  public Pair<List<S>, Double> proposeLog(Random rand, S x, S y, double t)
   {
     ProposalRandom pRand = new ProposalRandom(rand);
     double greed = options.greed;
@@ -53,12 +60,33 @@ public class PotProposal<S> implements Proposal<S>
       stopPr = options.randPr(rand);
     }
 
-    List<S> proposed = propose(process, potential, pRand, x, y, greed, stopPr);
+    List<S> proposed = propose(process, potential, workspaces.get(), pRand, x, y, greed, stopPr);
     
-    return Pair.of(proposed, Math.exp(pRand.getLogProbability()));
+    return Pair.of(proposed, pRand.getLogProbability());
   }
   
+  /**
+   * One workspace per thread, so that the proposal steps do not allocate.
+   */
+  private final ThreadLocal<ProposalWorkspace<S>> workspaces = new ThreadLocal<ProposalWorkspace<S>>() {
+    @Override
+    protected ProposalWorkspace<S> initialValue()
+    {
+      return new ProposalWorkspace<S>();
+    }
+  };
+  
   public static <S> List<S> propose(Process<S> process, Potential<S> pot, ProposalRandom pRand, S firstEndPoint, S lastEndPoint, double greed, double stopPr)
+  {
+    return propose(process, pot, new ProposalWorkspace<S>(), pRand, firstEndPoint, lastEndPoint, greed, stopPr);
+  }
+  
+  /**
+   * Same as propose(Process, Potential, ProposalRandom, ...), using the provided 
+   * workspace instead of building a Counter at each step (the distribution 
+   * is the same as with buildPotProposal()).
+   */
+  public static <S> List<S> propose(Process<S> process, Potential<S> pot, ProposalWorkspace<S> workspace, ProposalRandom pRand, S firstEndPoint, S lastEndPoint, double greed, double stopPr)
   {
     List<S> result = new ArrayList<S>();
     
@@ -70,13 +98,12 @@ public class PotProposal<S> implements Proposal<S>
         return result;
     
     boolean success = false;
+    double currentPotential = pot.get(current, lastEndPoint);
     mainLoop:for (int i = 0; i < MAX_PROPOSE_ATTEMPTS; i++)
     {
-      Counter<S> trPr = process.rates(current);
-      trPr.normalize();
-      buildPotProposal(pot, trPr, current, lastEndPoint, pRand.rand, SPECIAL_SYMBOL, greed, stopPr);
-      S next = pRand.sampleMultinomial(trPr);
-      if (next.equals(SPECIAL_SYMBOL))
+      workspace.build(process, pot, current, currentPotential, lastEndPoint, greed, stopPr);
+      final int nextIndex = workspace.sample(pRand);
+      if (nextIndex == workspace.size())
       {
         result.add(lastEndPoint);
         success = true;
@@ -84,10 +111,12 @@ public class PotProposal<S> implements Proposal<S>
       }
       else
       {
-        result.add(next);
-        current = next;
+        current = workspace.state(nextIndex);
+        currentPotential = workspace.potential(nextIndex);
+        result.add(current);
       }
     }
+    workspace.clear();
     if (!success)
       throw new RuntimeException();
     
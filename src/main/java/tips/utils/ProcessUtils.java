@@ -1,20 +1,84 @@
 package tips.utils;
 
+import java.util.List;
 import java.util.Random;
 
 import briefj.collections.Counter;
 
 import tips.Process;
+import tips.Rates;
+import tips.ReadOnlyRatesProcess;
+import tips.Stamped;
 
 public class ProcessUtils
 {
+  /**
+   * 
+   * @param process
+   * @return The stamp of the process if it is Stamped, otherwise its hash code 
+   *   (hack: assume then that it changes with the values of the parameters).
+   */
+  public static long stamp(Object process)
+  {
+    if (process instanceof Stamped)
+      return ((Stamped) process).stamp();
+    return process.hashCode();
+  }
+  
+  /**
+   * 
+   * @param process
+   * @param x
+   * @return The rates of departure from x, without copying them if the process 
+   *   is a ReadOnlyRatesProcess.
+   */
+  @SuppressWarnings("unchecked")
+  public static <S> Rates<S> readOnlyRates(Process<S> process, S x)
+  {
+    if (process instanceof ReadOnlyRatesProcess)
+      return ((ReadOnlyRatesProcess<S>) process).readOnlyRates(x);
+    return new Rates<S>(process.rates(x));
+  }
+  
+  /**
+   * 
+   * @param process
+   * @param x
+   * @return The rates of departure from x, in a Counter that the caller is free to modify.
+   */
+  @SuppressWarnings("unchecked")
+  public static <S> Counter<S> mutableRates(Process<S> process, S x)
+  {
+    if (process instanceof ReadOnlyRatesProcess)
+      return ((ReadOnlyRatesProcess<S>) process).readOnlyRates(x).toCounter();
+    return process.rates(x);
+  }
+  
   public static <S> double holdRate(Process<S> process, S x)
   {
+    if (process instanceof ReadOnlyRatesProcess)
+      return readOnlyRates(process, x).holdRate();
     return process.rates(x).totalCount();
   }
   
+  /**
+   * 
+   * @param process
+   * @param path
+   * @return The hold rate of each state in the path.
+   */
+  public static <S> double [] holdRates(Process<S> process, List<S> path)
+  {
+    final double [] result = new double[path.size()];
+    for (int i = 0; i < path.size(); i++)
+      result[i] = holdRate(process, path.get(i));
+    return result;
+  }
+  
   public static <S> double transitionProbability(Process<S> process, S x, S y)
   {
+    if (process instanceof ReadOnlyRatesProcess)
+      return readOnlyRates(process, x).transitionProbability(y);
     Counter<S> rates = process.rates(x);
     double norm = rates.totalCount();
     return rates.getCount(y) / norm;
@@ -22,6 +86,8 @@ public class ProcessUtils
   
   public static <S> S sample(Process<S> process, Random rand, S x)
   {
+    if (process instanceof ReadOnlyRatesProcess)
+      return readOnlyRates(process, x).sample(rand);
     Counter<S> rates = new Counter<S>(process.rates(x));
     rates.normalize();
     return ProposalRandom.sampleCounter(rates, rand);
@@ -1,9 +1,6 @@
 package tips.utils;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
-import bayonet.distributions.Multinomial;
 import briefj.collections.Counter;
 
 
@@ -32,22 +29,76 @@ public class ProposalRandom
     return item;
   }
   
+  /**
+   * Sample a key of a normalized counter, in a single pass over its entries 
+   * and without allocating. 
+   * 
+   * The counter is typically built for a single draw, so building a sampling 
+   * table would not pay off.
+   * 
+   * @param items
+   * @param rand
+   * @return The sampled key
+   */
   public static <S> S sampleCounter(Counter<S> items, Random rand)
   {
-    double [] prs = new double[items.size()];
-    List<S> keys = new ArrayList<S>(items.size());
-    int i =0 ;
+    final double u = rand.nextDouble();
+    double sum = 0.0;
+    S lastPositive = null;
     for (S key : items.keySet())
     {
-      prs[i] = items.getCount(key);
-      keys.add(key);
-      i++;
+      final double pr = items.getCount(key);
+      sum += pr;
+      if (u < sum)
+        return key;
+      if (pr > 0.0)
+        lastPositive = key;
     }
-    int index = 
-      Multinomial.sampleMultinomial(rand, prs);
-    return keys.get(index);
+    // rounding errors in the normalization
+    if (lastPositive == null)
+      throw new RuntimeException("No positive weight to sample from");
+    return lastPositive;
   }
 
+  /**
+   * Sample an index with probability proportional to weights, without 
+   * allocating.
+   * 
+   * @param weights Unnormalized probabilities (only the first size are used)
+   * @param cumulativeBuffer Overwritten with the cumulative sums of the weights
+   * @param size
+   * @return The sampled index
+   */
+  public int sampleIndex(double [] weights, double [] cumulativeBuffer, int size)
+  {
+    double total = 0.0;
+    for (int i = 0; i < size; i++)
+    {
+      total += weights[i];
+      cumulativeBuffer[i] = total;
+    }
+    if (!(total > 0.0))
+      throw new RuntimeException("No positive weight to sample from");
+    final double u = rand.nextDouble() * total;
+    
+    // first index with cumulative value larger than u
+    int low = 0, high = size - 1;
+    while (low < high)
+    {
+      final int middle = (low + high) >>> 1;
+      if (cumulativeBuffer[middle] > u)
+        high = middle;
+      else
+        low = middle + 1;
+    }
+    // rounding could otherwise select a trailing zero weight
+    while (weights[low] == 0.0 && low > 0)
+      low--;
+    
+    logProbability += Math.log(weights[low] / total);
+    return low;
+  }
+  
   public int sampleDiscreteUniform(int n)
   {
     logProbability = logProbability - Math.log(n);
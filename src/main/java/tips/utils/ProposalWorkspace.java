@@ -0,0 +1,196 @@
+package tips.utils;
+
+import java.util.Arrays;
+
+import briefj.collections.Counter;
+
+import tips.IncrementalPotential;
+import tips.Potential;
+import tips.Process;
+import tips.Rates;
+import tips.ReadOnlyRatesProcess;
+
+
+
+/**
+ * Reusable buffers for one step of PotProposal: the neighbors of the current 
+ * state, their rates and potentials, and the cumulative probabilities used for 
+ * sampling. 
+ * 
+ * The proposal distribution built here is the same as the one built by 
+ * PotProposal.buildPotProposal() on a Counter, but the arrays are only 
+ * reallocated when a state has more neighbors than seen so far. The last entry 
+ * (index size()) is the option of jumping to the target and stopping. 
+ * 
+ * Not thread safe: use one workspace per thread.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ * @param <S>
+ */
+public class ProposalWorkspace<S>
+{
+  private Object [] states = new Object[INITIAL_CAPACITY];
+  private double [] weights = new double[INITIAL_CAPACITY + 1];
+  private double [] potentials = new double[INITIAL_CAPACITY];
+  private double [] cumulative = new double[INITIAL_CAPACITY + 1];
+  private int size = 0;
+  private static final int INITIAL_CAPACITY = 16;
+  
+  /**
+   * Fill the workspace with the pot proposal distribution out of current.
+   * 
+   * @param process
+   * @param pot
+   * @param current
+   * @param currentPotential pot.get(current, target)
+   * @param target
+   * @param greed
+   * @param stopPr
+   */
+  @SuppressWarnings("unchecked")
+  public void build(Process<S> process, Potential<S> pot, S current, double currentPotential, S target, double greed, double stopPr)
+  {
+    if (current == null || target == null)
+      throw new RuntimeException();
+    if (greed < 0.5 || greed > 1.0)
+      throw new RuntimeException();
+    
+    size = 0;
+    if (process instanceof ReadOnlyRatesProcess)
+    {
+      final Rates<S> rates = ((ReadOnlyRatesProcess<S>) process).readOnlyRates(current);
+      ensureCapacity(rates.size());
+      for (int i = 0; i < rates.size(); i++)
+        add(rates.state(i), rates.rate(i));
+    }
+    else
+    {
+      final Counter<S> rates = process.rates(current);
+      ensureCapacity(rates.size());
+      for (S state : rates.keySet())
+        add(state, rates.getCount(state));
+    }
+    
+    final IncrementalPotential<S> incrementalPot = 
+        pot instanceof IncrementalPotential ? (IncrementalPotential<S>) pot : null;
+    
+    // potential distortion (see PotProposal.potPropDistort())
+    double good = 0.0, bad = 0.0, total = 0.0;
+    int targetIndex = -1;
+    for (int i = 0; i < size; i++)
+    {
+      final S state = (S) states[i];
+      final double statePotential = 
+          incrementalPot == null ? 
+            pot.get(state, target) : 
+            incrementalPot.get(state, current, currentPotential, target);
+      potentials[i] = statePotential;
+      final double delta = statePotential - currentPotential;
+      total += weights[i];
+      if (delta == -1) // makes us closer to the target
+        good += weights[i];
+      else if (delta == +1 || delta == 0.0)
+        bad += weights[i];
+      else if (Double.isInfinite(delta))
+        weights[i] = 0.0;
+      else
+        throw new RuntimeException(
+            "\nd(" + state + "," + target + ") = " + statePotential + "\n" +
+            "d(" + current + "," + target + ") = " + currentPotential);
+      if (targetIndex == -1 && state.equals(target))
+        targetIndex = i;
+    }
+    
+    if (good > 0.0 && bad > 0.0)
+    {
+      final double 
+        pGood = good / total, 
+        pBad = bad / total,
+        alpha = Math.max(greed, pGood),
+        goodFactor = alpha / pGood,
+        badFactor = (1.0 - alpha) / pBad;
+      for (int i = 0; i < size; i++)
+        if (weights[i] != 0.0)
+          weights[i] *= (potentials[i] - currentPotential == -1 ? goodFactor : badFactor);
+    }
+    
+    // stopping at the target (see PotProposal.addTarget())
+    weights[size] = 0.0;
+    if (targetIndex != -1)
+    {
+      final double targetWeight = weights[targetIndex];
+      weights[size] = targetWeight * stopPr;
+      weights[targetIndex] = targetWeight * (1.0 - stopPr);
+    }
+  }
+  
+  /**
+   * Sample from the distribution built by build().
+   * 
+   * @param pRand
+   * @return The index of the sampled neighbor, or size() for the stopping option.
+   */
+  public int sample(ProposalRandom pRand)
+  {
+    return pRand.sampleIndex(weights, cumulative, size + 1);
+  }
+  
+  /**
+   * @return The number of neighbors of the current state.
+   */
+  public int size()
+  {
+    return size;
+  }
+  
+  @SuppressWarnings("unchecked")
+  public S state(int index)
+  {
+    return (S) states[index];
+  }
+  
+  /**
+   * @return The unnormalized probability of proposing state(index), or of 
+   *   stopping if index is size().
+   */
+  public double weight(int index)
+  {
+    return weights[index];
+  }
+  
+  /**
+   * @return pot.get(state(index), target)
+   */
+  public double potential(int index)
+  {
+    return potentials[index];
+  }
+  
+  private void add(S state, double rate)
+  {
+    states[size] = state;
+    weights[size] = rate;
+    size++;
+  }
+  
+  private void ensureCapacity(int nNeighbors)
+  {
+    if (nNeighbors <= states.length)
+      return;
+    final int capacity = Math.max(nNeighbors, 2 * states.length);
+    states = new Object[capacity];
+    potentials = new double[capacity];
+    weights = new double[capacity + 1];
+    cumulative = new double[capacity + 1];
+  }
+  
+  /**
+   * Release the references to the states of the last build().
+   */
+  public void clear()
+  {
+    Arrays.fill(states, 0, size, null);
+    size = 0;
+  }
+}
@@ -0,0 +1,162 @@
+package tips.utils;
+
+import java.util.Random;
+
+
+
+/**
+ * Schemes to draw the ancestors of a population of particles from their
+ * weights.
+ *
+ * All the schemes run in O(N + K) for N draws from K weights: they generate
+ * sorted points in [0, 1) and sweep them once against the cumulative
+ * weights. As a consequence, the ancestors are returned in increasing order.
+ *
+ * MULTINOMIAL draws independent ancestors (its points are sorted uniforms,
+ * obtained from normalized sums of exponentials). The other schemes are
+ * unbiased as well but have a lower variance: STRATIFIED draws one uniform
+ * in each of the N strata [i/N, (i+1)/N), SYSTEMATIC translates the N strata
+ * by a single uniform, and RESIDUAL first copies each particle floor(N w_k)
+ * times, then draws the remaining ancestors multinomially from the residual
+ * weights.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public enum ResamplingScheme
+{
+  MULTINOMIAL
+  {
+    @Override
+    public int [] resample(Random rand, double [] prs, int nSamples)
+    {
+      return sweep(prs, sortedUniforms(rand, nSamples));
+    }
+  },
+  STRATIFIED
+  {
+    @Override
+    public int [] resample(Random rand, double [] prs, int nSamples)
+    {
+      final double [] points = new double[nSamples];
+      for (int i = 0; i < nSamples; i++)
+        points[i] = (i + rand.nextDouble()) / nSamples;
+      return sweep(prs, points);
+    }
+  },
+  SYSTEMATIC
+  {
+    @Override
+    public int [] resample(Random rand, double [] prs, int nSamples)
+    {
+      final double [] points = new double[nSamples];
+      final double uniform = rand.nextDouble();
+      for (int i = 0; i < nSamples; i++)
+        points[i] = (i + uniform) / nSamples;
+      return sweep(prs, points);
+    }
+  },
+  RESIDUAL
+  {
+    @Override
+    public int [] resample(Random rand, double [] prs, int nSamples)
+    {
+      final int [] nCopies = new int[prs.length];
+      final double [] residuals = new double[prs.length];
+      final double total = sum(prs);
+      int nCopied = 0;
+      for (int k = 0; k < prs.length; k++)
+      {
+        final double expected = nSamples * prs[k] / total;
+        nCopies[k] = Math.min((int) expected, nSamples - nCopied);
+        residuals[k] = expected - nCopies[k];
+        nCopied += nCopies[k];
+      }
+      if (nCopied < nSamples)
+        for (int draw : sweep(residuals, sortedUniforms(rand, nSamples - nCopied)))
+          nCopies[draw]++;
+      final int [] result = new int[nSamples];
+      int i = 0;
+      for (int k = 0; k < prs.length; k++)
+        for (int copy = 0; copy < nCopies[k]; copy++)
+          result[i++] = k;
+      return result;
+    }
+  };
+
+  /**
+   *
+   * @param rand
+   * @param prs The weights of the particles (not necessarily normalized)
+   * @param nSamples The number of ancestors to draw
+   * @return The indices of the ancestors, in increasing order.
+   */
+  public abstract int [] resample(Random rand, double [] prs, int nSamples);
+
+  /**
+   * @param prs Weights (not necessarily normalized)
+   * @return The effective sample size of the weights, (sum w)^2 / sum w^2,
+   *   between 1 and the number of weights.
+   */
+  public static double ess(double [] prs)
+  {
+    double sum = 0.0, sumOfSquares = 0.0;
+    for (double pr : prs)
+    {
+      sum += pr;
+      sumOfSquares += pr * pr;
+    }
+    return sum * sum / sumOfSquares;
+  }
+
+  /**
+   * @return For each of the points (sorted, in [0, 1), scaled by the total
+   *   weight), the index of the weight whose cumulative interval contains it.
+   */
+  private static int [] sweep(double [] prs, double [] points)
+  {
+    final int [] result = new int[points.length];
+    final double total = sum(prs);
+    if (!(total > 0.0) || Double.isInfinite(total))
+      throw new RuntimeException("Invalid weights, total: " + total);
+    int lastPositive = prs.length - 1;
+    while (prs[lastPositive] == 0.0)
+      lastPositive--;
+    int k = 0;
+    double cumulative = prs[0];
+    for (int i = 0; i < points.length; i++)
+    {
+      final double point = points[i] * total;
+      while (point >= cumulative && k < lastPositive)
+        cumulative += prs[++k];
+      result[i] = k;
+    }
+    return result;
+  }
+
+  /**
+   * @return n sorted uniforms on [0, 1), obtained in O(n) by normalizing the
+   *   partial sums of n + 1 exponential variables.
+   */
+  private static double [] sortedUniforms(Random rand, int n)
+  {
+    final double [] result = new double[n];
+    double sum = 0.0;
+    for (int i = 0; i < n; i++)
+    {
+      sum += -Math.log1p(-rand.nextDouble());
+      result[i] = sum;
+    }
+    sum += -Math.log1p(-rand.nextDouble());
+    for (int i = 0; i < n; i++)
+      result[i] /= sum;
+    return result;
+  }
+
+  private static double sum(double [] values)
+  {
+    double result = 0.0;
+    for (double value : values)
+      result += value;
+    return result;
+  }
+}
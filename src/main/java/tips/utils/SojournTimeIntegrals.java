@@ -0,0 +1,565 @@
+package tips.utils;
+
+import java.util.Arrays;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
+
+
+
+/**
+ * Integrates out the sojourn times of a jump chain, i.e. computes the
+ * probability that a chain visiting states with hold rates r_0, r_1, ..., r_n
+ * in this order has performed exactly n jumps at time t (Proposition 2 in the
+ * paper).
+ *
+ * This is the hypoexponential formula
+ *
+ * r_0 r_1 ... r_{n-1} (-1)^n f[r_0 t, ..., r_n t]
+ *
+ * where f[...] denotes the divided differences of f(x) = exp(-x), computed with
+ * a triangular recursion in O(n^2) time and O(n) memory. Rates are sorted first so
+ * that repeated (or near-equal) rates, which are frequent in practice
+ * (e.g. PIPStrings of the same length), can be grouped using the confluent form of the
+ * divided differences. 
+ * 
+ * A running bound on the rounding error of the recursion is maintained. When it is 
+ * ill-conditioned (typically for long paths with spread out rates), we use 
+ * uniformization instead, which only sums positive terms and takes O(n (n + max rate * t)) 
+ * time. Only when the latter would be too expensive do we fall back to the matrix 
+ * exponential of the (n+2) x (n+2) bidiagonal rate matrix.
+ * 
+ * logIntegrate() is the log scale counterpart of integrate(), for paths where 
+ * the integral underflows.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class SojournTimeIntegrals
+{
+  /**
+   * When the estimated relative error of the divided differences exceeds this
+   * value, a fallback is used instead. Also used as the relative truncation 
+   * tolerance of uniformization. A constant, since the integrals are computed 
+   * concurrently by the samplers running on several threads.
+   */
+  public static final double RELATIVE_TOLERANCE = 1e-8;
+
+  /**
+   * Scaled rates closer than this (relative) value are treated as equal.
+   */
+  private static final double CONFLUENCE_TOLERANCE = 1e-12;
+
+  private static final double EPS = Math.ulp(1.0);
+  
+  /**
+   * Uniformization is used as a fallback only if max rate * t is below this value.
+   */
+  private static final double MAX_UNIFORMIZATION_INTENSITY = 500.0;
+
+  /**
+   *
+   * @param holdRates The hold rates r_0, r_1, ..., r_n of the states visited
+   * @param t The total time
+   * @return The probability of having performed exactly n jumps at time t.
+   */
+  public static double integrate(double [] holdRates, double t)
+  {
+    final double [] scaledResult = dividedDifferences(holdRates, t);
+    if (scaledResult != null)
+      return scaledResult[0] * Math.exp(scaledResult[1]);
+    return maxScaledRate(holdRates, t) <= MAX_UNIFORMIZATION_INTENSITY ? 
+        integrateByUniformization(holdRates, t) : 
+        integrateWithMatrixExponential(holdRates, t);
+  }
+  
+  /**
+   * Same as integrate(), but returns the log of the integral, which does not 
+   * underflow for long paths. 
+   *
+   * @param holdRates The hold rates r_0, r_1, ..., r_n of the states visited
+   * @param t The total time
+   * @return The log probability of having performed exactly n jumps at time t.
+   */
+  public static double logIntegrate(double [] holdRates, double t)
+  {
+    final double [] scaledResult = dividedDifferences(holdRates, t);
+    if (scaledResult != null && scaledResult[0] >= MIN_SCALED_RESULT)
+      return Math.log(scaledResult[0]) + scaledResult[1];
+    return maxScaledRate(holdRates, t) <= MAX_UNIFORMIZATION_INTENSITY ? 
+        logIntegrateByUniformization(holdRates, t) : 
+        logIntegrateWithMatrixExponential(holdRates, t);
+  }
+  
+  /**
+   * Below this value, the output of the divided differences is 
+   * too close to underflow to be trusted in logIntegrate().
+   */
+  private static final double MIN_SCALED_RESULT = 1e-250;
+  
+  private static double maxScaledRate(double [] holdRates, double t)
+  {
+    double result = 0.0;
+    for (double rate : holdRates)
+      result = Math.max(result, rate * t);
+    return result;
+  }
+  
+  /**
+   * @return null if a fallback should be used, otherwise an array containing 
+   *   a value and the log of a factor, the integral being their product.
+   */
+  private static double [] dividedDifferences(double [] holdRates, double t)
+  {
+    final int n = holdRates.length - 1;
+    if (n < 0)
+      throw new RuntimeException("At least one state is needed");
+    if (n == 0)
+      return new double[]{1.0, -holdRates[0] * t};
+
+    final double [] scaled = new double[n + 1];
+    for (int i = 0; i <= n; i++)
+      scaled[i] = holdRates[i] * t;
+    final double last = scaled[n];
+    Arrays.sort(scaled);
+    final double min = scaled[0], max = scaled[n];
+
+    if (last == 0.0 && max > 0.0)
+      return null;
+
+    // values[i] at level k holds (x_i ... x_{i+k-1}) (-1)^k f[x_i, ..., x_{i+k}],
+    // i.e. the probability of exactly k jumps along the sorted rates x_i, ..., x_{i+k},
+    // where the common factor exp(-min) has been taken out
+    final double [] values = new double[n + 1], errors = new double[n + 1];
+    for (int i = 0; i <= n; i++)
+    {
+      values[i] = Math.exp(-(scaled[i] - min));
+      errors[i] = EPS * values[i];
+    }
+
+    for (int k = 1; k <= n; k++)
+      for (int i = 0; i + k <= n; i++)
+      {
+        final double
+          left = scaled[i],
+          right = scaled[i + k],
+          lastJumping = scaled[i + k - 1],
+          gap = right - left;
+        if (gap <= CONFLUENCE_TOLERANCE * right)
+        {
+          values[i] = values[i] * lastJumping / k;
+          errors[i] = errors[i] * lastJumping / k + EPS * values[i];
+          if (gap > 0.0)
+            errors[i] += values[i] * k * gap / right;
+        }
+        else
+        {
+          final double
+            first  = lastJumping * values[i],
+            second = left * values[i + 1];
+          values[i] = (first - second) / gap;
+          errors[i] = (lastJumping * errors[i] + left * errors[i + 1] + EPS * (Math.abs(first) + Math.abs(second))) / gap
+              + EPS * Math.abs(values[i]);
+        }
+      }
+
+    final double result = values[0], error = errors[0];
+    if (!(result > 0.0) || Double.isInfinite(result) || error > RELATIVE_TOLERANCE * result)
+      return null;
+
+    // values[0] has the product of the n smallest rates as prefactor, while we need
+    // the product of all rates but the last one visited
+    final double correction = max == last ? 1.0 : max / last;
+    return new double[]{result * correction, -min};
+  }
+
+  /**
+   * Evaluate the integral for several total times at once.
+   * 
+   * When the rates are distinct, the partial fraction expansion 
+   * 
+   * r_0 ... r_{n-1} sum_i exp(-r_i t) / prod_{j != i} (r_j - r_i)
+   * 
+   * is computed once in O(n^2), after which each time costs O(n). Times for which 
+   * this expansion suffers from cancellation, as well as paths with repeated rates, 
+   * are handled one at a time using integrate(holdRates, t).
+   * 
+   * @param holdRates The hold rates r_0, r_1, ..., r_n of the states visited
+   * @param ts The total times
+   * @return The probabilities of having performed exactly n jumps at each of the times.
+   */
+  public static double [] integrate(double [] holdRates, double [] ts)
+  {
+    final double [] result = new double[ts.length];
+    final PartialFractions expansion = PartialFractions.build(holdRates);
+    for (int k = 0; k < ts.length; k++)
+    {
+      final double value = expansion == null ? Double.NaN : expansion.evaluate(ts[k]);
+      result[k] = Double.isNaN(value) ? integrate(holdRates, ts[k]) : value;
+    }
+    return result;
+  }
+  
+  /**
+   * The partial fraction expansion of the integral, in log scale and with 
+   * the rates sorted. Only available when the rates are distinct.
+   */
+  private static class PartialFractions
+  {
+    private final double [] rates, logCoefficients;
+    
+    private PartialFractions(double [] rates, double [] logCoefficients)
+    {
+      this.rates = rates;
+      this.logCoefficients = logCoefficients;
+    }
+    
+    private static PartialFractions build(double [] holdRates)
+    {
+      final int n = holdRates.length - 1;
+      double logPrefactor = 0.0;
+      for (int i = 0; i < n; i++)
+        logPrefactor += Math.log(holdRates[i]);
+      
+      final double [] rates = holdRates.clone();
+      Arrays.sort(rates);
+      for (int i = 1; i <= n; i++)
+        if (rates[i] - rates[i - 1] <= DISTINCT_TOLERANCE * rates[i])
+          return null;
+      
+      final double [] logCoefficients = new double[n + 1];
+      for (int i = 0; i <= n; i++)
+      {
+        double current = logPrefactor;
+        for (int j = 0; j <= n; j++)
+          if (j != i)
+            current -= Math.log(Math.abs(rates[j] - rates[i]));
+        logCoefficients[i] = current;
+      }
+      return new PartialFractions(rates, logCoefficients);
+    }
+    
+    /**
+     * @return The integral at time t, or NaN if the expansion is ill-conditioned at t.
+     */
+    private double evaluate(double t)
+    {
+      final int n = rates.length - 1;
+      double maxLogTerm = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i <= n; i++)
+        maxLogTerm = Math.max(maxLogTerm, logCoefficients[i] - rates[i] * t);
+      if (Double.isInfinite(maxLogTerm))
+        return Double.NaN;
+      
+      double sum = 0.0, error = 0.0;
+      for (int i = 0; i <= n; i++)
+      {
+        final double term = Math.exp(logCoefficients[i] - rates[i] * t - maxLogTerm);
+        // the sign alternates since rates[j] - rates[i] < 0 exactly for j < i
+        sum += (i % 2 == 0 ? term : -term);
+        error += term * EPS * (Math.abs(logCoefficients[i]) + rates[i] * t + n + 1);
+      }
+      
+      if (!(sum > 0.0) || error > RELATIVE_TOLERANCE * sum)
+        return Double.NaN;
+      return sum * Math.exp(maxLogTerm);
+    }
+  }
+  private static final double DISTINCT_TOLERANCE = 1e-8;
+  
+  /**
+   * Sum over the number m of events of a Poisson process of intensity max rate * t 
+   * of the probability of m events times the probability that the uniformized chain
+   * is in state n after m steps.
+   * 
+   * @param holdRates
+   * @param t
+   * @return
+   */
+  public static double integrateByUniformization(double [] holdRates, double t)
+  {
+    final int n = holdRates.length - 1;
+    final double intensity = maxScaledRate(holdRates, t);
+    if (intensity == 0.0)
+      return n == 0 ? 1.0 : 0.0;
+    
+    // jump probabilities of the uniformized chain
+    final double [] jumpPrs = new double[n + 1];
+    for (int i = 0; i <= n; i++)
+      jumpPrs[i] = holdRates[i] * t / intensity;
+    
+    final double [] state = new double[n + 1];
+    state[0] = 1.0;
+    double poissonPr = Math.exp(-intensity);
+    double sum = 0.0;
+    for (int m = 0; m < MAX_UNIFORMIZATION_STEPS; m++)
+    {
+      if (m >= n)
+      {
+        sum += poissonPr * state[n];
+        // bound on the remaining Poisson mass, valid once the pmf is decreasing
+        final double ratio = intensity / (m + 2);
+        if (m + 1 > intensity && poissonPr * ratio / (1.0 - ratio) <= RELATIVE_TOLERANCE * sum)
+          return sum;
+      }
+      // one step of the uniformized chain (entries beyond m are still zero)
+      for (int i = Math.min(m + 1, n); i >= 1; i--)
+        state[i] = state[i] * (1.0 - jumpPrs[i]) + state[i - 1] * jumpPrs[i - 1];
+      state[0] = state[0] * (1.0 - jumpPrs[0]);
+      poissonPr = poissonPr * intensity / (m + 1);
+    }
+    throw new RuntimeException("Uniformization did not converge");
+  }
+  private static final int MAX_UNIFORMIZATION_STEPS = 1000000;
+  
+  /**
+   * Same as integrateByUniformization(), but in log scale: the Poisson 
+   * probabilities are computed in log scale, and the state vector of the 
+   * uniformized chain is rescaled whenever it gets small.
+   * 
+   * @param holdRates
+   * @param t
+   * @return
+   */
+  public static double logIntegrateByUniformization(double [] holdRates, double t)
+  {
+    final int n = holdRates.length - 1;
+    final double intensity = maxScaledRate(holdRates, t);
+    if (intensity == 0.0)
+      return n == 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+    // the chain never leaves a state with a zero hold rate
+    for (int i = 0; i < n; i++)
+      if (holdRates[i] == 0.0)
+        return Double.NEGATIVE_INFINITY;
+    
+    final double [] jumpPrs = new double[n + 1];
+    for (int i = 0; i <= n; i++)
+      jumpPrs[i] = holdRates[i] * t / intensity;
+    
+    final double [] state = new double[n + 1];
+    state[0] = 1.0;
+    double logScale = 0.0;
+    double logPoissonPr = -intensity;
+    final LogSum sum = new LogSum();
+    for (int m = 0; m < MAX_UNIFORMIZATION_STEPS; m++)
+    {
+      if (m >= n)
+      {
+        sum.add(logPoissonPr + Math.log(state[n]) + logScale);
+        final double ratio = intensity / (m + 2);
+        if (m + 1 > intensity && logPoissonPr + Math.log(ratio / (1.0 - ratio)) <= Math.log(RELATIVE_TOLERANCE) + sum.logValue())
+          return sum.logValue();
+      }
+      double maxEntry = 0.0;
+      for (int i = Math.min(m + 1, n); i >= 1; i--)
+      {
+        state[i] = state[i] * (1.0 - jumpPrs[i]) + state[i - 1] * jumpPrs[i - 1];
+        maxEntry = Math.max(maxEntry, state[i]);
+      }
+      state[0] = state[0] * (1.0 - jumpPrs[0]);
+      maxEntry = Math.max(maxEntry, state[0]);
+      if (maxEntry == 0.0)
+        return sum.logValue();
+      if (maxEntry < RESCALING_THRESHOLD)
+      {
+        for (int i = 0; i <= Math.min(m + 1, n); i++)
+          state[i] /= maxEntry;
+        logScale += Math.log(maxEntry);
+      }
+      logPoissonPr += Math.log(intensity / (m + 1));
+    }
+    throw new RuntimeException("Uniformization did not converge");
+  }
+  private static final double RESCALING_THRESHOLD = 1e-100;
+  
+  /**
+   * The log integrals for all the suffixes of a path at once: entry k is 
+   * logIntegrate((r_k, r_{k+1}, ..., r_n), t).
+   * 
+   * The suffixes are obtained with one backward pass of a log scale uniformization 
+   * (entry k tracks the probability of reaching state n from state k in m steps of 
+   * the uniformized chain), in O(n (n + max rate * t)) time instead of O(n^3) for 
+   * n separate calls. If max rate * t is too large for uniformization, each suffix 
+   * is computed separately.
+   * 
+   * @param holdRates The hold rates r_0, r_1, ..., r_n of the states visited
+   * @param t The total time
+   * @return
+   */
+  public static double [] logIntegrateSuffixes(double [] holdRates, double t)
+  {
+    final int n = holdRates.length - 1;
+    final double [] result = new double[n + 1];
+    final double intensity = maxScaledRate(holdRates, t);
+    
+    if (intensity > MAX_UNIFORMIZATION_INTENSITY)
+    {
+      for (int k = 0; k <= n; k++)
+        result[k] = logIntegrate(Arrays.copyOfRange(holdRates, k, n + 1), t);
+      return result;
+    }
+    
+    if (intensity == 0.0)
+    {
+      Arrays.fill(result, Double.NEGATIVE_INFINITY);
+      result[n] = 0.0;
+      return result;
+    }
+    
+    final double [] logJumpPrs = new double[n + 1], logStayPrs = new double[n + 1];
+    for (int k = 0; k <= n; k++)
+    {
+      final double jumpPr = holdRates[k] * t / intensity;
+      logJumpPrs[k] = Math.log(jumpPr);
+      logStayPrs[k] = Math.log1p(-jumpPr);
+    }
+    
+    // logReachPrs[k] is the log probability of being at n after m steps, starting at k 
+    final double [] logReachPrs = new double[n + 1];
+    Arrays.fill(logReachPrs, Double.NEGATIVE_INFINITY);
+    logReachPrs[n] = 0.0;
+    final LogSum [] sums = new LogSum[n + 1];
+    for (int k = 0; k <= n; k++)
+      sums[k] = new LogSum();
+    
+    double logPoissonPr = -intensity;
+    for (int m = 0; m < MAX_UNIFORMIZATION_STEPS; m++)
+    {
+      for (int k = Math.max(0, n - m); k <= n; k++)
+        sums[k].add(logPoissonPr + logReachPrs[k]);
+      
+      final double ratio = intensity / (m + 2);
+      if (m >= n && m + 1 > intensity)
+      {
+        double minLogSum = Double.POSITIVE_INFINITY;
+        for (int k = 0; k <= n; k++)
+        {
+          final double logSum = sums[k].logValue();
+          if (logSum > Double.NEGATIVE_INFINITY)
+            minLogSum = Math.min(minLogSum, logSum);
+        }
+        if (logPoissonPr + Math.log(ratio / (1.0 - ratio)) <= Math.log(RELATIVE_TOLERANCE) + minLogSum)
+        {
+          for (int k = 0; k <= n; k++)
+            result[k] = sums[k].logValue();
+          return result;
+        }
+      }
+      
+      // one step, conditioning on the first move (k increasing, so that logReachPrs[k+1] is still at step m)
+      for (int k = Math.max(0, n - m - 1); k < n; k++)
+        logReachPrs[k] = logAdd(logStayPrs[k] + logReachPrs[k], logJumpPrs[k] + logReachPrs[k + 1]);
+      logReachPrs[n] = logStayPrs[n] + logReachPrs[n];
+      logPoissonPr += Math.log(intensity / (m + 1));
+    }
+    throw new RuntimeException("Uniformization did not converge");
+  }
+  
+  /**
+   * Same as logIntegrateSuffixes(), for the reversed prefixes of the path: 
+   * entry k is logIntegrate((r_k, r_{k-1}, ..., r_0), t).
+   * 
+   * @param holdRates The hold rates r_0, r_1, ..., r_n of the states visited
+   * @param t The total time
+   * @return
+   */
+  public static double [] logIntegrateReversedPrefixes(double [] holdRates, double t)
+  {
+    final int n = holdRates.length - 1;
+    final double [] reversed = new double[n + 1];
+    for (int k = 0; k <= n; k++)
+      reversed[k] = holdRates[n - k];
+    final double [] suffixes = logIntegrateSuffixes(reversed, t);
+    final double [] result = new double[n + 1];
+    for (int k = 0; k <= n; k++)
+      result[k] = suffixes[n - k];
+    return result;
+  }
+  
+  private static double logAdd(double logX, double logY)
+  {
+    final double max = Math.max(logX, logY);
+    if (max == Double.NEGATIVE_INFINITY)
+      return max;
+    return max + Math.log1p(Math.exp(-Math.abs(logX - logY)));
+  }
+  
+  /**
+   * The original implementation: entry (0, n) of the matrix exponential of
+   * the bidiagonal rate matrix.
+   *
+   * @param holdRates
+   * @param t
+   * @return
+   */
+  public static double integrateWithMatrixExponential(double [] holdRates, double t)
+  {
+    // build matrix
+    final int size = holdRates.length + 1;
+    double [][] mtx = new double[size][size];
+    for (int i = 0; i < holdRates.length; i++)
+    {
+      final double curRate = holdRates[i];
+      mtx[i][i] = -curRate * t;
+      mtx[i][i+1] = curRate * t;
+    }
+
+    // return entry 0, size-2 of the matrix exponential
+    return MatrixFunctions.expm(new DoubleMatrix(mtx)).get(0, size - 2);
+  }
+  
+  /**
+   * Log scale version of integrateWithMatrixExponential().
+   * 
+   * Entry (0, n) of the exponential of a bidiagonal matrix with diagonal d_0, ..., d_n 
+   * and superdiagonal a_0, ..., a_{n-1} is a_0 ... a_{n-1} exp[d_0, ..., d_n] (divided 
+   * differences of exp). The diagonal is therefore shifted by the smallest scaled rate, 
+   * and the superdiagonal replaced by a constant chosen so that the entry computed is 
+   * neither too small nor too large; both are then corrected in log scale.
+   * 
+   * @param holdRates
+   * @param t
+   * @return
+   */
+  public static double logIntegrateWithMatrixExponential(double [] holdRates, double t)
+  {
+    final int n = holdRates.length - 1;
+    double min = Double.POSITIVE_INFINITY, logRatesProduct = 0.0;
+    for (int i = 0; i <= n; i++)
+    {
+      min = Math.min(min, holdRates[i] * t);
+      if (i < n)
+        logRatesProduct += Math.log(holdRates[i] * t);
+    }
+    if (n == 0)
+      return -min;
+    if (logRatesProduct == Double.NEGATIVE_INFINITY)
+      return Double.NEGATIVE_INFINITY;
+    
+    // the shifted divided differences are at most 1/n!, start near its inverse
+    double logSuperdiagonal = Math.max(0.0, Math.log(n / Math.E));
+    for (int attempt = 0; attempt < MAX_RESCALINGS; attempt++)
+    {
+      final double superdiagonal = Math.exp(logSuperdiagonal);
+      double [][] mtx = new double[n + 1][n + 1];
+      for (int i = 0; i <= n; i++)
+      {
+        mtx[i][i] = -(holdRates[i] * t - min);
+        if (i < n)
+          mtx[i][i+1] = superdiagonal;
+      }
+      final double entry = MatrixFunctions.expm(new DoubleMatrix(mtx)).get(0, n);
+      
+      // the entry is proportional to superdiagonal^n
+      if (entry >= MIN_RESCALED_ENTRY && entry <= 1.0 / MIN_RESCALED_ENTRY)
+        return Math.log(entry) - n * logSuperdiagonal + logRatesProduct - min;
+      if (entry > 0.0 && !Double.isInfinite(entry))
+        logSuperdiagonal -= Math.log(entry) / n;
+      else
+        logSuperdiagonal += (entry == 0.0 ? +1.0 : -1.0) * RESCALING_LOG_STEP / n;
+    }
+    throw new RuntimeException("Could not rescale the matrix exponential");
+  }
+  private static final int MAX_RESCALINGS = 100;
+  private static final double MIN_RESCALED_ENTRY = 1e-200;
+  private static final double RESCALING_LOG_STEP = 500.0;
+}
@@ -0,0 +1,45 @@
+package tips;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+import tips.utils.AdaptiveEstimate;
+import tips.utils.AdaptiveOptions;
+
+
+
+/**
+ * Check the stopping rules of the adaptive mode of TimeIntegratedPathSampler.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestAdaptiveTIPS
+{
+  @Test
+  public void testStoppingRules()
+  {
+    TimeIntegratedPathSampler<Integer> sampler = new TimeIntegratedPathSampler<Integer>(new SimpleBirthDeathPotential(), new SimpleBirthDeathProcess());
+    
+    AdaptiveOptions options = new AdaptiveOptions();
+    options.targetRelativeStandardError = 0.01;
+    AdaptiveEstimate estimate = sampler.estimateTransitionPrAdaptively(1, 0, 1.0, options);
+    System.out.println(estimate);
+    Assert.assertEquals(AdaptiveEstimate.StoppingReason.RELATIVE_STANDARD_ERROR, estimate.stoppingReason);
+    Assert.assertTrue(estimate.relativeStandardError <= 0.01);
+    Assert.assertEquals(0.25, estimate.estimate, 4 * 0.01 * 0.25);
+    
+    options.targetRelativeStandardError = -1;
+    options.targetESS = 2000;
+    estimate = sampler.estimateTransitionPrAdaptively(1, 0, 1.0, options);
+    Assert.assertEquals(AdaptiveEstimate.StoppingReason.ESS, estimate.stoppingReason);
+    Assert.assertTrue(estimate.ess >= 2000);
+    
+    options.targetESS = -1;
+    options.maxParticles = 2500;
+    estimate = sampler.estimateTransitionPrAdaptively(1, 0, 1.0, options);
+    Assert.assertEquals(AdaptiveEstimate.StoppingReason.MAX_PARTICLES, estimate.stoppingReason);
+    Assert.assertEquals(2500, estimate.nParticles);
+  }
+}
@@ -0,0 +1,41 @@
+package tips;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+
+
+
+/**
+ * Check that the log scale weights agree with the linear ones when the 
+ * latter do not underflow.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestLogWeights
+{
+  @Test
+  public void testAgreement()
+  {
+    TimeIntegratedPathSampler<Integer> sampler = new TimeIntegratedPathSampler<Integer>(new SimpleBirthDeathPotential(), new SimpleBirthDeathProcess());
+    sampler.nParticles = 10000;
+    
+    sampler.rand = new Random(1);
+    final double estimate = sampler.estimateTransitionPr(1, 0, 1.0);
+    sampler.rand = new Random(1);
+    final double logEstimate = sampler.estimateLogTransitionPr(1, 0, 1.0);
+    Assert.assertEquals(Math.log(estimate), logEstimate, 1e-10);
+    
+    for (int i = 0; i < 100; i++)
+    {
+      final long seed = i;
+      final double linear = sampler.sampleTreeCherry(new Random(seed), 1, 3, 0.5, 0.7).getRight();
+      final double log = sampler.sampleTreeCherryLog(new Random(seed), 1, 3, 0.5, 0.7).getRight();
+      Assert.assertEquals(Math.log(linear), log, 1e-10);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package tips;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import briefj.collections.Counter;
+
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+
+
+
+/**
+ * Check that the parallel mode of TimeIntegratedPathSampler gives
+ * the same output regardless of the number of threads, and that it
+ * is still consistent.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestParallelTIPS
+{
+  @Test
+  public void testThreadCountInvariance()
+  {
+    double [] estimates = new double[3];
+    double [] pathMasses = new double[3];
+    int [] nThreads = new int[]{1, 2, 4};
+    for (int i = 0; i < nThreads.length; i++)
+    {
+      TimeIntegratedPathSampler<Integer> sampler = buildSampler(new ForkJoinPool(nThreads[i]));
+      estimates[i] = sampler.estimateTransitionPr(1, 0, 1.0);
+      sampler.rand = new Random(1);
+      Counter<List<Integer>> paths = sampler.sampleEndPointConditionedPaths(1, 0, 1.0);
+      pathMasses[i] = paths.totalCount();
+    }
+    for (int i = 1; i < nThreads.length; i++)
+    {
+      Assert.assertEquals(estimates[0], estimates[i], 0.0);
+      Assert.assertEquals(pathMasses[0], pathMasses[i], 0.0);
+    }
+    System.out.println("TIPS (parallel) = " + estimates[0]);
+    Assert.assertEquals(0.25, estimates[0], 1e-2);
+  }
+
+  private TimeIntegratedPathSampler<Integer> buildSampler(ForkJoinPool pool)
+  {
+    TimeIntegratedPathSampler<Integer> sampler = new TimeIntegratedPathSampler<Integer>(new SimpleBirthDeathPotential(), new SimpleBirthDeathProcess());
+    sampler.nParticles = 100000;
+    sampler.particlesPerChunk = 1000;
+    sampler.rand = new Random(1);
+    sampler.pool = pool;
+    return sampler;
+  }
+}
@@ -0,0 +1,71 @@
+package tips;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+
+
+
+/**
+ * Check the rootings computed in one pass against sampleTreeCherryLog(), and 
+ * that the Rao-Blackwellized cherries agree with the plain ones.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestRaoBlackwellizedRooting
+{
+  @Test
+  public void testRootings()
+  {
+    TimeIntegratedPathSampler<Integer> sampler = buildSampler();
+    for (int i = 0; i < 100; i++)
+    {
+      final long seed = i;
+      List<Pair<Integer,Double>> rootings = sampler.treeCherryRootingsLog(new Random(seed), 1, 3, 0.5, 0.7);
+      // sampleTreeCherryLog() makes the same proposal, then picks a root uniformly
+      Pair<Integer,Double> single = sampler.sampleTreeCherryLog(new Random(seed), 1, 3, 0.5, 0.7);
+      boolean found = false;
+      for (Pair<Integer,Double> rooting : rootings)
+        if (rooting.getLeft().equals(single.getLeft()) && 
+            Math.abs(rooting.getRight() + Math.log(rootings.size()) - single.getRight()) < 1e-6)
+          found = true;
+      Assert.assertTrue(found);
+    }
+  }
+  
+  @Test
+  public void testCherries()
+  {
+    TimeIntegratedPathSampler<Integer> sampler = buildSampler();
+    final double [] means = new double[2], standardErrors = new double[2];
+    for (int mode = 0; mode < 2; mode++)
+    {
+      sampler.raoBlackwellizeRooting = mode == 1;
+      Random rand = new Random(1);
+      final int nParticles = 100000;
+      double sum = 0.0, sumOfSquares = 0.0;
+      for (int i = 0; i < nParticles; i++)
+      {
+        final double weight = sampler.sampleTreeCherry(rand, 1, 2, 0.3, 0.4).getRight();
+        sum += weight;
+        sumOfSquares += weight * weight;
+      }
+      means[mode] = sum / nParticles;
+      standardErrors[mode] = Math.sqrt((sumOfSquares / nParticles - means[mode] * means[mode]) / nParticles);
+      System.out.println("Rao-Blackwellized=" + sampler.raoBlackwellizeRooting + ": " + means[mode] + " (standard error: " + standardErrors[mode] + ")");
+    }
+    Assert.assertEquals(means[0], means[1], 4.0 * Math.sqrt(standardErrors[0] * standardErrors[0] + standardErrors[1] * standardErrors[1]));
+  }
+  
+  private TimeIntegratedPathSampler<Integer> buildSampler()
+  {
+    TimeIntegratedPathSampler<Integer> sampler = new TimeIntegratedPathSampler<Integer>(new SimpleBirthDeathPotential(), new SimpleBirthDeathProcess());
+    return sampler;
+  }
+}
@@ -1,6 +1,6 @@
 package tips.bd;
 
-import tips.Potential;
+import tips.IncrementalPotential;
 import tutorialj.Tutorial;
 
 
@@ -10,8 +10,13 @@ import tutorialj.Tutorial;
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class SimpleBirthDeathPotential implements Potential<Integer>
+public class SimpleBirthDeathPotential implements IncrementalPotential<Integer>
 {
+  @Override
+  public double get(Integer neighbor, Integer current, double currentPotential, Integer target)
+  {
+    return currentPotential + (Math.abs(neighbor - target) - Math.abs(current - target));
+  }
 
   @Override
   @Tutorial(showSignature = true, showLink = true, linkPrefix = "src/test/java/")
@@ -0,0 +1,109 @@
+package tips.bd;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.TimeIntegratedPathSampler;
+import tips.bd.ReversibleBDProcess.ExpectedLengthParameterization;
+import tips.bd.ReversibleBDProcess.FullParameterization;
+
+
+
+/**
+ * Check the cached stationary sampler of ReversibleBDProcess against the 
+ * stationary probabilities, including after a change of parameters, and
+ * the exact transition probabilities against stationarity and TIPS.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestReversibleBDProcess
+{
+  @Test
+  public void testStationarySampler()
+  {
+    Random rand = new Random(1);
+    ReversibleBDProcess<ExpectedLengthParameterization> process = ReversibleBDProcess.normalizedIntensityWithExpectedLength(3.0);
+    check(process, rand);
+    process.parameters.expectedLength.setValue(50.0);
+    check(process, rand);
+  }
+  
+  private static void check(ReversibleBDProcess<?> process, Random rand)
+  {
+    final int nSamples = 100000, maxValue = 200;
+    final int [] counts = new int[maxValue + 1];
+    for (int i = 0; i < nSamples; i++)
+      counts[Math.min(process.sampleFromStationary(rand), maxValue)]++;
+    for (int k = 0; k < maxValue; k++)
+    {
+      final double pr = process.getStationaryProbability(k);
+      Assert.assertEquals(pr, ((double) counts[k]) / nSamples, 5 * Math.sqrt(pr / nSamples) + 1e-4);
+    }
+  }
+  
+  @Test
+  public void testExactTransitionProbabilities()
+  {
+    ReversibleBDProcess<FullParameterization> process = ReversibleBDProcess.muLambdaParameterized(0.5, 1.3);
+    ReversibleBDTransitionProbabilities exact = new ReversibleBDTransitionProbabilities(process);
+    final int maxState = 100;
+    final double t = 0.7;
+    
+    // rows sum to one, and the stationary distribution is preserved
+    for (int x = 0; x < 10; x++)
+    {
+      double rowSum = 0.0, stationarySum = 0.0;
+      for (int y = 0; y < maxState; y++)
+      {
+        rowSum += exact.transitionProbability(x, y, t);
+        stationarySum += process.getStationaryProbability(y) * exact.transitionProbability(y, x, t);
+      }
+      Assert.assertEquals(1.0, rowSum, 1e-10);
+      Assert.assertEquals(process.getStationaryProbability(x), stationarySum, 1e-10);
+    }
+    
+    TimeIntegratedPathSampler<Integer> sampler = new TimeIntegratedPathSampler<Integer>(new SimpleBirthDeathPotential(), process);
+    sampler.nParticles = 100000;
+    final double pr = exact.transitionProbability(3, 5, t);
+    Assert.assertEquals(pr, sampler.estimateTransitionPr(3, 5, t), 0.02 * pr);
+    
+    // cherry weights: exact sum versus the mean of the TIPS weights
+    double tipsMean = 0.0;
+    for (int i = 0; i < sampler.nParticles; i++)
+      tipsMean += sampler.sampleTreeCherry(3, 5, 0.2, 0.5).getRight() / sampler.nParticles;
+    final double exactCherry = Math.exp(exact.sampleTreeCherryLog(new Random(1), 3, 5, 0.2, 0.5).getRight());
+    Assert.assertEquals(exactCherry, tipsMean, 0.02 * exactCherry);
+  }
+  
+  @Test
+  public void testZeroLengthCherry()
+  {
+    ReversibleBDProcess<FullParameterization> process = ReversibleBDProcess.muLambdaParameterized(0.5, 1.3);
+    ReversibleBDTransitionProbabilities exact = new ReversibleBDTransitionProbabilities(process);
+    Random rand = new Random(1);
+    // no root can reach both observations
+    Assert.assertEquals(Double.NEGATIVE_INFINITY, exact.sampleTreeCherryLog(rand, 3, 5, 0.0, 0.0).getRight(), 0.0);
+    // the only root is the observation
+    Assert.assertEquals(3, (int) exact.sampleTreeCherryLog(rand, 3, 3, 0.0, 0.0).getLeft());
+    Assert.assertEquals(3, (int) exact.sampleTreeCherryLog(rand, 3, 5, 0.0, 0.5).getLeft());
+    Assert.assertEquals(
+        Math.log(process.getStationaryProbability(3)) + exact.logTransitionProbability(3, 5, 0.5), 
+        exact.sampleTreeCherryLog(rand, 3, 5, 0.0, 0.5).getRight(), 1e-10);
+  }
+  
+  @Test
+  public void testStampTracksParameters()
+  {
+    ReversibleBDProcess<FullParameterization> process = ReversibleBDProcess.muLambdaParameterized(0.5, 1.3);
+    final long stamp = process.stamp();
+    Assert.assertEquals(stamp, ReversibleBDProcess.muLambdaParameterized(0.5, 1.3).stamp());
+    process.parameters.lambda.setValue(1.4);
+    Assert.assertFalse(stamp == process.stamp());
+    process.parameters.lambda.setValue(1.3);
+    Assert.assertEquals(stamp, process.stamp());
+    process.parameters.mu.setValue(0.6);
+    Assert.assertFalse(stamp == process.stamp());
+  }
+}
@@ -0,0 +1,81 @@
+package tips.dc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import conifer.TreeNode;
+
+
+
+/**
+ * Check ParticleGenealogy against explicit copies of the map from nodes to
+ * states of each particle, along random merges and resamplings.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestParticleGenealogy
+{
+  @Test
+  public void testAgainstMapCopies()
+  {
+    for (boolean compact : new boolean[]{false, true})
+    {
+      Random rand = new Random(1);
+      final int nLeaves = 20, nParticles = 50;
+      ParticleGenealogy<Integer> genealogy = new ParticleGenealogy<Integer>(compact);
+      List<TreeNode> frontier = Lists.newArrayList();
+      Map<TreeNode, Integer> initialParticle = Maps.newHashMap();
+      for (int leaf = 0; leaf < nLeaves; leaf++)
+      {
+        TreeNode node = TreeNode.withLabel("leaf" + leaf);
+        frontier.add(node);
+        genealogy.addConstant(node, leaf);
+        initialParticle.put(node, leaf);
+      }
+      List<Map<TreeNode, Integer>> particles = Lists.newArrayList();
+      particles.add(initialParticle);
+
+      for (int internal = 0; frontier.size() > 1; internal++)
+      {
+        final TreeNode
+          child0 = frontier.remove(rand.nextInt(frontier.size())),
+          child1 = frontier.remove(rand.nextInt(frontier.size())),
+          parent = TreeNode.withLabel("internal" + internal);
+        final int [] ancestors = new int[nParticles];
+        final Integer [] newStates = new Integer[nParticles];
+        List<Map<TreeNode, Integer>> newParticles = Lists.newArrayList();
+        for (int i = 0; i < nParticles; i++)
+        {
+          // favour a few ancestors so that lineages die out
+          ancestors[i] = rand.nextInt(Math.max(1, particles.size() / 4));
+          final Map<TreeNode, Integer> ancestor = particles.get(ancestors[i]);
+          Assert.assertEquals(ancestor.get(child0), genealogy.get(child0, ancestors[i]));
+          Assert.assertEquals(ancestor.get(child1), genealogy.get(child1, ancestors[i]));
+          newStates[i] = ancestor.get(child0) + ancestor.get(child1) + rand.nextInt(3);
+          Map<TreeNode, Integer> newParticle = Maps.newHashMap(ancestor);
+          newParticle.put(parent, newStates[i]);
+          newParticles.add(newParticle);
+        }
+        genealogy.remove(child0);
+        genealogy.remove(child1);
+        genealogy.resample(ancestors);
+        genealogy.add(parent, newStates);
+        frontier.add(parent);
+        particles = newParticles;
+
+        for (TreeNode node : frontier)
+          for (int i = 0; i < nParticles; i++)
+            Assert.assertEquals(particles.get(i).get(node), genealogy.get(node, i));
+        // only the frontier is held
+        Assert.assertTrue(genealogy.nStoredStates() <= frontier.size() * nParticles);
+      }
+    }
+  }
+}
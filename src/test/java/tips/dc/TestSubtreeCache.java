@@ -0,0 +1,64 @@
+package tips.dc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import briefj.collections.Counter;
+import conifer.TreeNode;
+
+
+
+/**
+ * Check the structural keys of SubtreeCache and its eviction under a 
+ * particle budget.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestSubtreeCache
+{
+  @Test
+  public void testKeys()
+  {
+    Assert.assertEquals(cherry(0, 0.1, 3), cherry(0, 0.1, 3));
+    Assert.assertEquals(cherry(0, 0.1, 3).hashCode(), cherry(0, 0.1, 3).hashCode());
+    Assert.assertFalse(cherry(0, 0.1, 3).equals(cherry(0, 0.2, 3)));
+    Assert.assertFalse(cherry(0, 0.1, 3).equals(cherry(1, 0.1, 3)));
+    Assert.assertFalse(cherry(0, 0.1, 3).equals(cherry(0, 0.1, 4)));
+  }
+  
+  @Test
+  public void testBudget()
+  {
+    SubtreeCache<Integer> cache = new SubtreeCache<Integer>();
+    final long budget = 5;
+    for (int observation = 0; observation < 3; observation++)
+      cache.put(cherry(0, 0.1, observation), population(2), budget);
+    // the first population was evicted to stay within 5 particles
+    Assert.assertEquals(2, cache.size());
+    Assert.assertNull(cache.get(cherry(0, 0.1, 0)));
+    Assert.assertNotNull(cache.get(cherry(0, 0.1, 1)));
+    
+    // the population for observation 1 was just used, so 2 is evicted next
+    cache.put(cherry(0, 0.1, 3), population(2), budget);
+    Assert.assertNotNull(cache.get(cherry(0, 0.1, 1)));
+    Assert.assertNull(cache.get(cherry(0, 0.1, 2)));
+    Assert.assertEquals(2, cache.getNHits());
+    Assert.assertEquals(2, cache.getNMisses());
+  }
+  
+  private static SubtreeCache.Key cherry(int site, double branchLength, int observation)
+  {
+    return SubtreeCache.Key.internal(
+        SubtreeCache.Key.leaf(site, TreeNode.withLabel("a"), observation), branchLength, 
+        SubtreeCache.Key.leaf(site, TreeNode.withLabel("b"), 0), 0.5, 
+        42L);
+  }
+  
+  private static TreeNodeSample<Integer> population(int size)
+  {
+    Counter<Integer> samples = new Counter<Integer>();
+    for (int i = 0; i < size; i++)
+      samples.incrementCount(i, 1.0 / size);
+    return new TreeNodeSample<Integer>(samples, 0.0);
+  }
+}
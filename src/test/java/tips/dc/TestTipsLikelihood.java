@@ -1,6 +1,8 @@
 package tips.dc;
 
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
@@ -15,6 +17,7 @@ import blang.annotations.DefineFactor;
 import tips.Potential;
 import tips.StationaryProcess;
 import tips.bd.ReversibleBDProcess;
+import tips.bd.ReversibleBDTransitionProbabilities;
 import tips.bd.SimpleBirthDeathPotential;
 import tips.dc.TipsTreeLikelihood.LikelihoodCalculationMethod;
 import tips.finite.FiniteProcess;
@@ -22,6 +25,7 @@ import tips.finite.FiniteProcessPotential;
 
 import conifer.TopologyUtils;
 import conifer.TreeNode;
+import conifer.UnrootedTree;
 import conifer.factors.NonClockTreePrior;
 import conifer.factors.UnrootedTreeLikelihood;
 import conifer.models.DiscreteGammaMixture;
@@ -162,6 +166,114 @@ public class TestTipsLikelihood
     }
   }
   
+  /**
+   * Check that the per-site and per-subtree parallel evaluations do not 
+   * depend on the number of threads.
+   */
+  @Test
+  public void testParallelSites()
+  {
+    TipsTreeLikelihood<Integer> likelihood = new TipsTreeLikelihood<Integer>(20, TopologyUtils.syntheticTaxaList(nTaxa))
+      .withEvolutionaryProcess(process, potential);
+    likelihood.generate(new Random(1));
+    likelihood.setNParticles(100);
+    
+    for (LikelihoodCalculationMethod method : LikelihoodCalculationMethod.values())
+    for (int cutoff : new int[]{2, Integer.MAX_VALUE})
+    {
+      likelihood.likelihoodCalculationMethod = method;
+      likelihood.subtreeParallelCutoff = cutoff;
+      double [] values = new double[3];
+      int [] nThreads = new int[]{1, 2, 4};
+      for (int i = 0; i < nThreads.length; i++)
+      {
+        likelihood.rand = new Random(1);
+        likelihood.pool = new ForkJoinPool(nThreads[i]);
+        values[i] = likelihood.recomputeLogDensity();
+      }
+      for (int i = 1; i < nThreads.length; i++)
+        Assert.assertEquals(values[0], values[i], 0.0);
+      System.out.println("Method: " + method + ", subtree cutoff: " + cutoff + ", parallel: " + values[0]);
+    }
+  }
+  
+  /**
+   * Check that carrying the weights over when the effective sample size is 
+   * large (essResamplingThreshold 0.0 never resamples after the first node, 
+   * 1.0 always does) gives estimates consistent with the DC method.
+   */
+  @Test
+  public void testEssThreshold()
+  {
+    TipsTreeLikelihood<Integer> likelihood = new TipsTreeLikelihood<Integer>(5, TopologyUtils.syntheticTaxaList(nTaxa))
+      .withEvolutionaryProcess(process, potential);
+    likelihood.generate(new Random(1));
+    likelihood.rand = new Random(1);
+    final int nRepeats = 20;
+    
+    likelihood.setNParticles(1000);
+    SummaryStatistics reference = new SummaryStatistics();
+    for (int repeat = 0; repeat < nRepeats; repeat++)
+      reference.addValue(likelihood.recomputeLogDensity());
+    System.out.println("DC: " + reference.getMean() + " (sd: " + reference.getStandardDeviation() + ")");
+    
+    likelihood.setNParticles(100);
+    for (LikelihoodCalculationMethod method : new LikelihoodCalculationMethod[]{LikelihoodCalculationMethod.SMC_BOTTOM_UP, LikelihoodCalculationMethod.SMC_DFS})
+    for (double threshold : new double[]{0.0, 1.0})
+    {
+      likelihood.likelihoodCalculationMethod = method;
+      likelihood.essResamplingThreshold = threshold;
+      SummaryStatistics estimates = new SummaryStatistics();
+      for (int repeat = 0; repeat < nRepeats; repeat++)
+        estimates.addValue(likelihood.recomputeLogDensity());
+      System.out.println("Method: " + method + ", ESS threshold: " + threshold + ", mean: " + estimates.getMean() + " (sd: " + estimates.getStandardDeviation() + ")");
+      // a few standard errors, plus the downward bias of the log estimates
+      Assert.assertEquals(reference.getMean(), estimates.getMean(), 4.0 * estimates.getStandardDeviation() / Math.sqrt(nRepeats) + 0.1);
+    }
+  }
+  
+  /**
+   * Check that a site whose observations cannot be reached (a cherry with zero 
+   * branch lengths and distinct leaves) has a log density of -inf, instead of 
+   * aborting the computation.
+   */
+  @Test
+  public void testZeroProbabilityCherry()
+  {
+    final List<TreeNode> leaves = TopologyUtils.syntheticTaxaList(4);
+    final TreeNode internal0 = TreeNode.nextUnlabelled(), internal1 = TreeNode.nextUnlabelled();
+    UnrootedTree tree = new UnrootedTree();
+    tree.addEdge(internal0, leaves.get(0), 0.0);
+    tree.addEdge(internal0, leaves.get(1), 0.0);
+    tree.addEdge(internal0, internal1, 1.0);
+    tree.addEdge(internal1, leaves.get(2), 0.5);
+    tree.addEdge(internal1, leaves.get(3), 0.5);
+    
+    // only the second site can be reached
+    TipsTreeObservation<Integer> observations = new TipsTreeObservation<Integer>(2);
+    final int [][] values = new int[][]{{3, 5, 4, 4}, {3, 3, 4, 4}};
+    for (int site = 0; site < 2; site++)
+      for (int leaf = 0; leaf < 4; leaf++)
+        observations.set(site, leaves.get(leaf), values[site][leaf]);
+    
+    TipsTreeLikelihood<Integer> likelihood = TipsTreeLikelihood.fromObservations(observations).withTree(tree).withEvolutionaryProcess(process, potential);
+    likelihood.cherrySampler = new ReversibleBDTransitionProbabilities((ReversibleBDProcess<?>) process);
+    likelihood.setNParticles(100);
+    for (LikelihoodCalculationMethod method : LikelihoodCalculationMethod.values())
+    {
+      likelihood.likelihoodCalculationMethod = method;
+      Assert.assertEquals(Double.NEGATIVE_INFINITY, likelihood.recomputeLogDensity(), 0.0);
+    }
+    
+    observations.set(0, leaves.get(1), 3);
+    for (LikelihoodCalculationMethod method : LikelihoodCalculationMethod.values())
+    {
+      likelihood.likelihoodCalculationMethod = method;
+      final double logDensity = likelihood.recomputeLogDensity();
+      Assert.assertTrue(logDensity > Double.NEGATIVE_INFINITY && logDensity < 0.0);
+    }
+  }
+  
   private int readObservation(Object o)
   {
     double [][] array = (double[][]) o;
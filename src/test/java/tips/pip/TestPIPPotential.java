@@ -0,0 +1,50 @@
+package tips.pip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import briefj.collections.Counter;
+
+
+
+/**
+ * Check that the incremental potential updates of PIPPotential match the
+ * potential recomputed from scratch, on the neighbors produced by PIPProcess.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestPIPPotential
+{
+  @Test
+  public void testIncrementalMatchesFull()
+  {
+    Random rand = new Random(1);
+    PIPPotential pot = new PIPPotential();
+    PIPProcess process = new PIPProcess(2.0, 0.5);
+    for (int trial = 0; trial < 500; trial++)
+    {
+      final int nZeroes = rand.nextInt(4);
+      PIPString current = randomString(rand, nZeroes, true);
+      PIPString target = randomString(rand, nZeroes, false);
+      final double currentPotential = pot.get(current, target);
+      Counter<PIPString> rates = process.rates(current);
+      for (PIPString neighbor : rates.keySet())
+        Assert.assertEquals(pot.get(neighbor, target), pot.get(neighbor, current, currentPotential, target), 0.0);
+    }
+  }
+  
+  private static PIPString randomString(Random rand, int nZeroes, boolean allowMinus)
+  {
+    List<Integer> characters = new ArrayList<Integer>();
+    for (int i = 0; i < nZeroes; i++)
+      characters.add(0);
+    final int nOthers = rand.nextInt(6);
+    for (int i = 0; i < nOthers; i++)
+      characters.add(rand.nextInt(characters.size() + 1), allowMinus && rand.nextBoolean() ? -1 : +1);
+    return new PIPString(characters);
+  }
+}
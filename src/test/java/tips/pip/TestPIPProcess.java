@@ -0,0 +1,78 @@
+package tips.pip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import muset.MSAPoset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import briefj.collections.Counter;
+
+import com.google.common.collect.Sets;
+
+
+
+/**
+ * Check that the run-grouped neighbor enumeration of PIPProcess.rates()
+ * gives the same rates as enumerating every insertion and deletion position, 
+ * that the end point simulator matches the full path simulator, and that 
+ * the stamp tracks the parameters.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestPIPProcess
+{
+  @Test
+  public void testStampTracksParameters()
+  {
+    final long stamp = new PIPProcess(2.0, 0.5).stamp();
+    Assert.assertEquals(stamp, new PIPProcess(2.0, 0.5).stamp());
+    Assert.assertFalse(stamp == new PIPProcess(2.1, 0.5).stamp());
+    Assert.assertFalse(stamp == new PIPProcess(2.0, 0.6).stamp());
+    Assert.assertFalse(stamp == new PIPProcess(0.5, 2.0).stamp());
+  }
+  
+  @Test
+  public void testRatesMatchPositionEnumeration()
+  {
+    Random rand = new Random(1);
+    final double lambda = 2.0, mu = 0.5;
+    PIPProcess process = new PIPProcess(lambda, mu);
+    for (int trial = 0; trial < 500; trial++)
+    {
+      final List<Integer> characters = new ArrayList<Integer>();
+      final int length = rand.nextInt(50);
+      for (int i = 0; i < length; i++)
+        characters.add(rand.nextInt(3) - 1);
+      final PIPString point = new PIPString(characters);
+      
+      Counter<PIPString> expected = new Counter<PIPString>();
+      for (int i = 0; i <= length; i++)
+        expected.incrementCount(PIPString.insertion(point, i, +1), lambda / (length + 1));
+      for (int i = 0; i < length; i++)
+        expected.incrementCount(PIPString.deletion(point, i), mu);
+      
+      Counter<PIPString> actual = process.rates(point);
+      Assert.assertEquals(expected.keySet(), actual.keySet());
+      for (PIPString neighbor : expected.keySet())
+        Assert.assertEquals(expected.getCount(neighbor), actual.getCount(neighbor), 1e-12);
+    }
+  }
+  
+  @Test
+  public void testEndPointsMatchFullPath()
+  {
+    PIPProcess process = new PIPProcess(1.3, 0.5);
+    for (int seed = 0; seed < 200; seed++)
+    {
+      final String init = PIPProcess.repeat(PIPProcess.star, seed % 7);
+      MSAPoset expected = PIPProcess.keepOnlyEndPts(process.sample(new Random(seed), process.createInitMSA(init), 1.0), PIPMain.ta, PIPMain.tb);
+      MSAPoset actual = process.sampleEndPoints(new Random(seed), init, 1.0, PIPMain.ta, PIPMain.tb);
+      Assert.assertEquals(expected.sequences(), actual.sequences());
+      Assert.assertEquals(Sets.newLinkedHashSet(expected.edges()), Sets.newLinkedHashSet(actual.edges()));
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+package tips.pip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.utils.PathFingerprint;
+
+
+
+/**
+ * Check the packed representation of PIPString against list operations,
+ * in particular for edits near and across word boundaries.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestPIPString
+{
+  @Test
+  public void testEditsMatchLists()
+  {
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 2000; trial++)
+    {
+      final List<Integer> characters = new ArrayList<Integer>();
+      final int length = rand.nextInt(100);
+      for (int i = 0; i < length; i++)
+        characters.add(rand.nextInt(3) - 1);
+      final PIPString string = new PIPString(characters);
+      Assert.assertEquals(characters, string.characters);
+      
+      final int insertPosition = rand.nextInt(length + 1), symbol = rand.nextInt(3) - 1;
+      final List<Integer> inserted = new ArrayList<Integer>(characters);
+      inserted.add(insertPosition, symbol);
+      checkSame(inserted, PIPString.insertion(string, insertPosition, symbol));
+      
+      if (length > 0)
+      {
+        final int deletePosition = rand.nextInt(length);
+        final List<Integer> deleted = new ArrayList<Integer>(characters);
+        deleted.remove(deletePosition);
+        checkSame(deleted, PIPString.deletion(string, deletePosition));
+      }
+    }
+  }
+  
+  @Test
+  public void testFingerprintOfEqualHashes()
+  {
+    // the words 0 and 2^32 + 1 have the same hash code: all -1, and 0 at positions 0 and 16
+    final List<Integer> allMinus = new ArrayList<Integer>(), twoZeroes = new ArrayList<Integer>();
+    for (int i = 0; i < 32; i++)
+    {
+      allMinus.add(-1);
+      twoZeroes.add(i == 0 || i == 16 ? 0 : -1);
+    }
+    final PIPString first = new PIPString(allMinus), second = new PIPString(twoZeroes);
+    Assert.assertEquals(first.hashCode(), second.hashCode());
+    Assert.assertFalse(first.equals(second));
+    Assert.assertFalse(first.fingerprint() == second.fingerprint());
+    Assert.assertEquals(first.fingerprint(), new PIPString(allMinus).fingerprint());
+    
+    final List<PIPString> firstPath = new ArrayList<PIPString>(), secondPath = new ArrayList<PIPString>();
+    firstPath.add(first);
+    secondPath.add(second);
+    Assert.assertFalse(PathFingerprint.of(firstPath).equals(PathFingerprint.of(secondPath)));
+  }
+  
+  private static void checkSame(List<Integer> expected, PIPString actual)
+  {
+    Assert.assertEquals(expected, actual.characters);
+    final PIPString fromList = new PIPString(expected);
+    Assert.assertEquals(fromList, actual);
+    Assert.assertEquals(fromList.hashCode(), actual.hashCode());
+  }
+}
@@ -0,0 +1,85 @@
+package tips.utils;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.Process;
+import tips.StationaryProcess;
+import tips.TimeIntegratedPathSampler;
+import tips.bd.ReversibleBDProcess;
+import tips.bd.ReversibleBDProcess.FullParameterization;
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+import tips.utils.CachingProcess.Concurrency;
+
+
+
+/**
+ * Check that caching the rates does not change the output of TIPS, that 
+ * the cache is bounded, and that the stamp is the one of the process.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestCachingProcess
+{
+  @Test
+  public void testSameEstimates()
+  {
+    final double reference = estimate(new SimpleBirthDeathProcess(), null);
+    for (Concurrency concurrency : Concurrency.values())
+    {
+      CachingProcess<Integer> cached = CachingProcess.wrap(new SimpleBirthDeathProcess(), 100, concurrency);
+      ForkJoinPool pool = concurrency == Concurrency.NONE ? null : new ForkJoinPool(4);
+      final double estimate = estimate(cached, pool);
+      System.out.println(concurrency + ": " + estimate + " (hit rate: " + cached.hitRate() + ")");
+      if (pool == null)
+        Assert.assertEquals(reference, estimate, 1e-12);
+      else
+        Assert.assertEquals(reference, estimate, 1e-2);
+      Assert.assertTrue(cached.hitRate() > 0.9);
+    }
+  }
+  
+  @Test
+  public void testBoundedSize()
+  {
+    CachingProcess<Integer> cached = CachingProcess.wrap(new SimpleBirthDeathProcess(), 2, Concurrency.NONE);
+    Assert.assertTrue(cached instanceof StationaryProcess);
+    cached.readOnlyRates(1);
+    cached.readOnlyRates(2);
+    cached.readOnlyRates(1);
+    cached.readOnlyRates(3); // evicts 2
+    cached.readOnlyRates(1);
+    cached.readOnlyRates(2);
+    Assert.assertEquals(2, cached.getNHits());
+    Assert.assertEquals(4, cached.getNMisses());
+    
+    // rates() should return copies
+    cached.rates(1).setCount(0, 1000.0);
+    Assert.assertEquals(new SimpleBirthDeathProcess().rates(1).getCount(0), cached.readOnlyRates(1).getRate(0), 0.0);
+  }
+  
+  @Test
+  public void testStampDelegates()
+  {
+    ReversibleBDProcess<FullParameterization> process = ReversibleBDProcess.muLambdaParameterized(0.5, 1.3);
+    CachingProcess<Integer> cached = CachingProcess.wrap(process, 100, Concurrency.NONE);
+    final long stamp = cached.stamp();
+    Assert.assertEquals(process.stamp(), stamp);
+    process.parameters.lambda.setValue(1.4);
+    Assert.assertFalse(stamp == cached.stamp());
+    Assert.assertEquals(process.stamp(), cached.stamp());
+  }
+  
+  private double estimate(Process<Integer> process, ForkJoinPool pool)
+  {
+    TimeIntegratedPathSampler<Integer> sampler = new TimeIntegratedPathSampler<Integer>(new SimpleBirthDeathPotential(), process);
+    sampler.nParticles = 10000;
+    sampler.rand = new Random(1);
+    sampler.pool = pool;
+    return sampler.estimateTransitionPr(1, 0, 1.0);
+  }
+}
@@ -0,0 +1,91 @@
+package tips.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import briefj.collections.Counter;
+
+import tips.Process;
+import tips.Proposal;
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+
+
+
+/**
+ * Check that the fingerprint based exhaustiveSum covers the same paths as
+ * the original one, and does not depend on the number of threads.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestExhaustiveSum
+{
+  @Test
+  public void testAgainstPathSet()
+  {
+    SimpleBirthDeathProcess process = new SimpleBirthDeathProcess();
+    PotProposal<Integer> proposal = new PotProposal<Integer>(process, new SimpleBirthDeathPotential(), new PotPropOptions());
+    final int nTries = 20000;
+    
+    final double 
+      reference = Baselines.exhaustiveSum(new Random(1), nTries, process, proposal, 1, 0, 1.0),
+      sequential = Baselines.exhaustiveSum(new Random(1), nTries, process, proposal, 1, 0, 1.0, null, 1000, true);
+    Assert.assertEquals(reference, sequential, 1e-12 * reference);
+    
+    double [] sums = new double[3];
+    int [] nThreads = new int[]{1, 2, 4};
+    for (int i = 0; i < nThreads.length; i++)
+      sums[i] = Baselines.exhaustiveSum(new Random(1), nTries, process, proposal, 1, 0, 1.0, new ForkJoinPool(nThreads[i]), 1000, true);
+    for (int i = 1; i < nThreads.length; i++)
+      Assert.assertEquals(sums[0], sums[i], 1e-12 * sums[0]);
+    System.out.println("exhaustiveSum = " + reference + ", (parallel) = " + sums[0]);
+    Assert.assertTrue(sums[0] > 0.2 && sums[0] <= 0.25 + 1e-2);
+  }
+  
+  /**
+   * The paths x, Aa, y and x, BB, y share a fingerprint, since "Aa" and "BB" 
+   * have the same hash code: both should still be covered.
+   */
+  @Test
+  public void testCollidingHashCodes()
+  {
+    Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+    final Process<String> process = new Process<String>() {
+      @Override
+      public Counter<String> rates(String point)
+      {
+        final Counter<String> result = new Counter<String>();
+        if (point.equals("x"))
+        {
+          result.setCount("Aa", 1.0);
+          result.setCount("BB", 2.0);
+        }
+        else
+          result.setCount("x", 1.0);
+        return result;
+      }
+    };
+    final Proposal<String> proposal = new Proposal<String>() {
+      @Override
+      public Pair<List<String>, Double> propose(Random rand, String x, String y, double t)
+      {
+        return Pair.of(Arrays.asList(x, rand.nextBoolean() ? "Aa" : "BB", y), 1.0);
+      }
+    };
+    final double 
+      reference = Baselines.exhaustiveSum(new Random(1), 100, process, proposal, "x", "x", 1.0),
+      parallel = Baselines.exhaustiveSum(new Random(1), 100, process, proposal, "x", "x", 1.0, new ForkJoinPool(2), 10, false);
+    Assert.assertEquals(reference, parallel, 1e-12 * reference);
+    // both paths are covered
+    final double 
+      pathAa = PathScore.score(process, Arrays.asList("x", "Aa", "x")).unnormalizedTargetPr(1.0),
+      pathBB = PathScore.score(process, Arrays.asList("x", "BB", "x")).unnormalizedTargetPr(1.0);
+    Assert.assertEquals(pathAa + pathBB, parallel, 1e-12 * parallel);
+  }
+}
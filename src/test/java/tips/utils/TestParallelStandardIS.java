@@ -0,0 +1,46 @@
+package tips.utils;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import muset.MSAPoset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.pip.PIPMain;
+import tips.pip.PIPProcess;
+
+
+
+/**
+ * Check that the parallel variant of Baselines.standardIS does not depend 
+ * on the number of threads, and agrees with the sequential version.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestParallelStandardIS
+{
+  @Test
+  public void testAgainstSequential()
+  {
+    PIPMain pipMain = new PIPMain();
+    pipMain.bl = 0.3;
+    pipMain.generateNextData();
+    MSAPoset ref = pipMain.getGeneratedEndPoints();
+    PIPProcess process = pipMain.getProcess();
+    final int nPart = 100000;
+    
+    double [] estimates = new double[3];
+    int [] nThreads = new int[]{1, 2, 4};
+    for (int i = 0; i < nThreads.length; i++)
+      estimates[i] = Baselines.standardIS(ref, pipMain.bl, process, nPart, new Random(1), new ForkJoinPool(nThreads[i]), 1000, null);
+    for (int i = 1; i < nThreads.length; i++)
+      Assert.assertEquals(estimates[0], estimates[i], 0.0);
+    Assert.assertEquals(estimates[0], Baselines.standardIS(ref, pipMain.bl, process, nPart, new Random(1), null, 1000, null), 0.0);
+    
+    final double sequential = Baselines.standardIS(ref, pipMain.bl, process, nPart, new Random(2), null);
+    System.out.println("standardIS (parallel) = " + estimates[0] + ", (sequential) = " + sequential);
+    Assert.assertEquals(sequential, estimates[0], 5 * Math.sqrt(sequential / nPart));
+  }
+}
@@ -0,0 +1,51 @@
+package tips.utils;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/**
+ * Check that invokeChunks runs the chunks on the pool it is given, also 
+ * when called from a task running in another pool.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestParallelUtils
+{
+  @Test
+  public void testRunsOnGivenPool()
+  {
+    final ForkJoinPool pool = new ForkJoinPool(2), other = new ForkJoinPool(2);
+    final ParallelUtils.ChunkTask<ForkJoinPool> poolOfChunk = new ParallelUtils.ChunkTask<ForkJoinPool>() {
+      @Override
+      public ForkJoinPool run(int chunkIndex)
+      {
+        return ForkJoinTask.getPool();
+      }
+    };
+    check(pool, ParallelUtils.invokeChunks(pool, 8, poolOfChunk));
+    // from a task in the same pool, and from a task in another pool
+    for (ForkJoinPool caller : new ForkJoinPool[]{pool, other})
+      check(pool, caller.invoke(new RecursiveTask<List<ForkJoinPool>>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected List<ForkJoinPool> compute()
+        {
+          return ParallelUtils.invokeChunks(pool, 8, poolOfChunk);
+        }
+      }));
+  }
+  
+  private static void check(ForkJoinPool expected, List<ForkJoinPool> pools)
+  {
+    Assert.assertEquals(8, pools.size());
+    for (ForkJoinPool pool : pools)
+      Assert.assertTrue(pool == expected);
+  }
+}
@@ -0,0 +1,46 @@
+package tips.utils;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tips.Process;
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+
+
+
+/**
+ * Compare the single pass PathScore to the jump by jump computation.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestPathScore
+{
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAgainstJumpByJump()
+  {
+    Random rand = new Random(1);
+    Process<Integer> process = new SimpleBirthDeathProcess();
+    Process<Integer> cached = CachingProcess.wrap(process, 100, CachingProcess.Concurrency.NONE);
+    PotProposal<Integer> proposal = new PotProposal<Integer>(process, new SimpleBirthDeathPotential(), new PotPropOptions());
+    for (int trial = 0; trial < 100; trial++)
+    {
+      List<Integer> path = proposal.propose(rand, 1 + rand.nextInt(5), rand.nextInt(5), 1.0).getLeft();
+      double expected = 1.0;
+      for (int i = 0; i < path.size() - 1; i++)
+        expected *= ProcessUtils.transitionProbability(process, path.get(i), path.get(i + 1));
+      final double [] expectedHoldRates = ProcessUtils.holdRates(process, path);
+      
+      for (Process<Integer> current : new Process[]{process, cached})
+      {
+        PathScore score = PathScore.score(current, path);
+        Assert.assertEquals(expected, score.jumpChainProbability(), 1e-12 * expected);
+        Assert.assertArrayEquals(expectedHoldRates, score.holdRates, 0.0);
+      }
+    }
+  }
+}
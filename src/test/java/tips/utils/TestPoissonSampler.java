@@ -0,0 +1,50 @@
+package tips.utils;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.math.SpecialFunctions;
+
+
+
+/**
+ * Check the empirical distribution of PoissonSampler against the Poisson 
+ * probability mass function, for means using the table and PTRS.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestPoissonSampler
+{
+  @Test
+  public void testAgainstMassFunction()
+  {
+    Random rand = new Random(1);
+    final int nSamples = 200000;
+    for (double mean : new double[]{0.0, 0.3, 4.0, 29.5, 30.0, 75.0, 1000.0})
+    {
+      PoissonSampler sampler = new PoissonSampler(mean);
+      final int maxValue = (int) (mean + 20 * Math.sqrt(mean) + 20);
+      final int [] counts = new int[maxValue + 1];
+      double sum = 0.0, sumSquares = 0.0;
+      for (int i = 0; i < nSamples; i++)
+      {
+        final int sample = sampler.sample(rand);
+        Assert.assertTrue(sample >= 0 && sample <= maxValue);
+        counts[sample]++;
+        sum += sample;
+        sumSquares += ((double) sample) * sample;
+      }
+      final double empiricalMean = sum / nSamples;
+      final double empiricalVariance = sumSquares / nSamples - empiricalMean * empiricalMean;
+      Assert.assertEquals(mean, empiricalMean, 5 * Math.sqrt(mean / nSamples) + 1e-12);
+      Assert.assertEquals(mean, empiricalVariance, 0.02 * mean + 1e-12);
+      for (int k = 0; k <= maxValue; k++)
+      {
+        final double pr = mean == 0.0 ? (k == 0 ? 1.0 : 0.0) : Math.exp(-mean + k * Math.log(mean) - SpecialFunctions.lnGamma(k + 1.0));
+        Assert.assertEquals(pr, ((double) counts[k]) / nSamples, 5 * Math.sqrt(pr / nSamples) + 1e-4);
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package tips.utils;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import briefj.collections.Counter;
+
+import tips.bd.SimpleBirthDeathPotential;
+import tips.bd.SimpleBirthDeathProcess;
+
+
+
+/**
+ * Check that the array based proposal steps give the same distribution 
+ * and log probability as the Counter based ones.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestProposalWorkspace
+{
+  @Test
+  public void testSameDistribution()
+  {
+    SimpleBirthDeathProcess process = new SimpleBirthDeathProcess();
+    SimpleBirthDeathPotential potential = new SimpleBirthDeathPotential();
+    ProposalWorkspace<Integer> workspace = new ProposalWorkspace<Integer>();
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 1000; trial++)
+    {
+      final int current = rand.nextInt(10), target = rand.nextInt(10);
+      if (current == target)
+        continue;
+      final double greed = 0.5 + 0.5 * rand.nextDouble(), stopPr = rand.nextDouble();
+      
+      Counter<Integer> expected = process.rates(current);
+      expected.normalize();
+      PotProposal.buildPotProposal(potential, expected, current, target, rand, PotProposal.SPECIAL_SYMBOL, greed, stopPr);
+      
+      workspace.build(process, potential, current, potential.get(current, target), target, greed, stopPr);
+      double total = 0.0;
+      for (int i = 0; i <= workspace.size(); i++)
+        total += workspace.weight(i);
+      for (int i = 0; i < workspace.size(); i++)
+        Assert.assertEquals(expected.getCount(workspace.state(i)), workspace.weight(i) / total, 1e-12);
+      @SuppressWarnings({ "rawtypes", "unchecked" })
+      final double expectedStopPr = ((Counter) expected).getCount(PotProposal.SPECIAL_SYMBOL);
+      Assert.assertEquals(expectedStopPr, workspace.weight(workspace.size()) / total, 1e-12);
+      
+      ProposalRandom pRand = new ProposalRandom(rand);
+      final int sampled = workspace.sample(pRand);
+      Assert.assertEquals(Math.log(workspace.weight(sampled) / total), pRand.getLogProbability(), 1e-12);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package tips.utils;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/**
+ * Check that the resampling schemes are unbiased, return sorted ancestors,
+ * and that the low variance schemes have the expected number of copies.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestResamplingScheme
+{
+  private static final double [] weights = {0.0, 3.0, 0.5, 0.0, 1.2, 2.3, 0.01, 0.0};
+
+  @Test
+  public void testUnbiased()
+  {
+    final int nSamples = 20, nRepeats = 20000;
+    final double total = 7.01;
+    for (ResamplingScheme scheme : ResamplingScheme.values())
+    {
+      Random rand = new Random(1);
+      final double [] meanCounts = new double[weights.length];
+      for (int repeat = 0; repeat < nRepeats; repeat++)
+      {
+        final int [] ancestors = scheme.resample(rand, weights, nSamples);
+        Assert.assertEquals(nSamples, ancestors.length);
+        for (int i = 0; i < nSamples; i++)
+        {
+          Assert.assertTrue(weights[ancestors[i]] > 0.0);
+          if (i > 0)
+            Assert.assertTrue(ancestors[i - 1] <= ancestors[i]);
+          meanCounts[ancestors[i]] += 1.0 / nRepeats;
+        }
+      }
+      for (int k = 0; k < weights.length; k++)
+      {
+        final double expected = nSamples * weights[k] / total;
+        Assert.assertEquals(scheme.toString(), expected, meanCounts[k], 5.0 * Math.sqrt(expected / nRepeats) + 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testLowVariance()
+  {
+    final int nSamples = 20;
+    final double total = 7.01;
+    Random rand = new Random(1);
+    for (ResamplingScheme scheme : new ResamplingScheme[]{ResamplingScheme.SYSTEMATIC, ResamplingScheme.RESIDUAL})
+      for (int repeat = 0; repeat < 1000; repeat++)
+      {
+        final int [] counts = new int[weights.length];
+        for (int ancestor : scheme.resample(rand, weights, nSamples))
+          counts[ancestor]++;
+        for (int k = 0; k < weights.length; k++)
+        {
+          final double expected = nSamples * weights[k] / total;
+          Assert.assertTrue(counts[k] >= Math.floor(expected));
+          if (scheme == ResamplingScheme.SYSTEMATIC)
+            Assert.assertTrue(counts[k] <= Math.ceil(expected));
+        }
+      }
+  }
+
+  @Test
+  public void testEss()
+  {
+    Assert.assertEquals(4.0, ResamplingScheme.ess(new double[]{0.5, 0.5, 0.5, 0.5}), 1e-12);
+    Assert.assertEquals(1.0, ResamplingScheme.ess(new double[]{0.0, 2.0, 0.0}), 1e-12);
+  }
+}
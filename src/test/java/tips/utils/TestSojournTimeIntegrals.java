@@ -0,0 +1,136 @@
+package tips.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/**
+ * Compare the closed form sojourn time integrals (and their uniformization
+ * fallback) to the matrix exponential, including paths with repeated
+ * and near-equal hold rates.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ */
+public class TestSojournTimeIntegrals
+{
+  @Test
+  public void testAgainstMatrixExponential()
+  {
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 1000; trial++)
+    {
+      final int n = rand.nextInt(40);
+      final double [] holdRates = new double[n + 1];
+      for (int i = 0; i <= n; i++)
+        switch (trial % 3)
+        {
+          case 0  : holdRates[i] = 5.0 * rand.nextDouble(); break;
+          case 1  : holdRates[i] = 1 + rand.nextInt(3); break;
+          default : holdRates[i] = 2.0 + 0.1 * (i % 4) + (rand.nextBoolean() ? 1e-9 : 0.0);
+        }
+      final double t = 3.0 * rand.nextDouble();
+
+      final double
+        exact = SojournTimeIntegrals.integrateWithMatrixExponential(holdRates, t),
+        fast = SojournTimeIntegrals.integrate(holdRates, t),
+        uniformized = SojournTimeIntegrals.integrateByUniformization(holdRates, t);
+
+      // the matrix exponential is only accurate in absolute terms for tiny entries
+      final double tolerance = Math.max(1e-6 * exact, 1e-12);
+      Assert.assertEquals(exact, fast, tolerance);
+      Assert.assertEquals(exact, uniformized, tolerance);
+    }
+  }
+  
+  @Test
+  public void testSeveralTimes()
+  {
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 200; trial++)
+    {
+      final int n = rand.nextInt(20);
+      final double [] holdRates = new double[n + 1];
+      for (int i = 0; i <= n; i++)
+        holdRates[i] = trial % 2 == 0 ? 5.0 * rand.nextDouble() : 1 + rand.nextInt(3);
+      final double [] ts = new double[5];
+      for (int k = 0; k < ts.length; k++)
+        ts[k] = 3.0 * rand.nextDouble();
+      
+      final double [] values = SojournTimeIntegrals.integrate(holdRates, ts);
+      for (int k = 0; k < ts.length; k++)
+      {
+        final double exact = SojournTimeIntegrals.integrateWithMatrixExponential(holdRates, ts[k]);
+        Assert.assertEquals(exact, values[k], Math.max(1e-6 * exact, 1e-12));
+      }
+    }
+  }
+  
+  @Test
+  public void testLogScale()
+  {
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 200; trial++)
+    {
+      final int n = rand.nextInt(40);
+      final double [] holdRates = new double[n + 1];
+      for (int i = 0; i <= n; i++)
+        holdRates[i] = trial % 2 == 0 ? 5.0 * rand.nextDouble() : 1 + rand.nextInt(3);
+      final double t = 3.0 * rand.nextDouble();
+      final double expected = Math.log(SojournTimeIntegrals.integrate(holdRates, t));
+      Assert.assertEquals(expected, SojournTimeIntegrals.logIntegrate(holdRates, t), 1e-6);
+      Assert.assertEquals(expected, SojournTimeIntegrals.logIntegrateByUniformization(holdRates, t), 1e-6);
+    }
+    
+    // a long path with small rates, where the integral underflows
+    final double [] holdRates = new double[400];
+    for (int i = 0; i < holdRates.length; i++)
+      holdRates[i] = 0.01 + 0.001 * (i % 7);
+    Assert.assertEquals(0.0, SojournTimeIntegrals.integrate(holdRates, 1.0), 0.0);
+    final double logValue = SojournTimeIntegrals.logIntegrate(holdRates, 1.0);
+    Assert.assertTrue(logValue < -1000 && !Double.isInfinite(logValue));
+    Assert.assertEquals(logValue, SojournTimeIntegrals.logIntegrateByUniformization(holdRates, 1.0), 1e-6 * Math.abs(logValue));
+  }
+  
+  @Test
+  public void testLogScaleHighIntensity()
+  {
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 50; trial++)
+    {
+      final int n = rand.nextInt(20);
+      final double [] holdRates = new double[n + 1];
+      for (int i = 0; i <= n; i++)
+        holdRates[i] = 5.0 * rand.nextDouble();
+      final double t = 3.0 * rand.nextDouble();
+      Assert.assertEquals(
+          Math.log(SojournTimeIntegrals.integrateWithMatrixExponential(holdRates, t)), 
+          SojournTimeIntegrals.logIntegrateWithMatrixExponential(holdRates, t), 1e-6);
+    }
+    
+    // equal rates: log Poisson(n; r t), which underflows for r t = 1000
+    final int n = 20;
+    final double rate = 1000.0;
+    final double [] holdRates = new double[n + 1];
+    Arrays.fill(holdRates, rate);
+    double expected = -rate + n * Math.log(rate);
+    for (int i = 2; i <= n; i++)
+      expected -= Math.log(i);
+    Assert.assertEquals(0.0, SojournTimeIntegrals.integrateWithMatrixExponential(holdRates, 1.0), 0.0);
+    Assert.assertEquals(expected, SojournTimeIntegrals.logIntegrate(holdRates, 1.0), 1e-6 * Math.abs(expected));
+    Assert.assertEquals(expected, SojournTimeIntegrals.logIntegrateWithMatrixExponential(holdRates, 1.0), 1e-6 * Math.abs(expected));
+  }
+  
+  @Test
+  public void testUnreachable()
+  {
+    // the chain cannot leave the state with a zero hold rate
+    final double [] holdRates = new double[]{1.0, 0.0, 2.0};
+    Assert.assertEquals(0.0, SojournTimeIntegrals.integrate(holdRates, 1.0), 0.0);
+    Assert.assertEquals(Double.NEGATIVE_INFINITY, SojournTimeIntegrals.logIntegrate(holdRates, 1.0), 0.0);
+    Assert.assertEquals(Double.NEGATIVE_INFINITY, SojournTimeIntegrals.logIntegrateByUniformization(holdRates, 1.0), 0.0);
+  }
+}